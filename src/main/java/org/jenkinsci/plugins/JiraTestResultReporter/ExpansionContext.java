@@ -0,0 +1,68 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.EnvVars;
+import hudson.tasks.test.TestResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state used for expanding variables for one test. The value of each variable is computed at most once
+ * and shared by all the fields of the issue and by the duplicate search. Not thread safe, create one for each test.
+ */
+public class ExpansionContext {
+    private final TestResult test;
+    private final EnvVars envVars;
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param test
+     * @param envVars
+     */
+    public ExpansionContext(TestResult test, EnvVars envVars) {
+        this.test = test;
+        this.envVars = envVars;
+    }
+
+    public TestResult getTest() {
+        return test;
+    }
+
+    public EnvVars getEnvVars() {
+        return envVars;
+    }
+
+    /**
+     * Getter for a memoized value
+     * @param varName
+     * @return the value, or null if it was not computed yet
+     */
+    String getValue(String varName) {
+        return values.get(varName);
+    }
+
+    /**
+     * Memoizes the value of a variable
+     * @param varName
+     * @param value
+     */
+    void putValue(String varName, String value) {
+        values.put(varName, value);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.input.FieldInput;
+import com.atlassian.jira.rest.client.api.domain.input.IssueInput;
+import com.atlassian.jira.rest.client.api.domain.input.IssueInputBuilder;
+import hudson.EnvVars;
+import hudson.tasks.test.TestResult;
+import org.jenkinsci.plugins.JiraTestResultReporter.config.AbstractFields;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The issue template of a job configuration, compiled once for each configuration. The default templates and the
+ * configured fields are merged (fields overridden by a later one with the same key are dropped), the inputs of
+ * the constant fields are built here, and only the fields with variables are rendered for each test.
+ */
+public class IssueTemplate {
+    private static final String LABELS_FIELD = "labels";
+    private final String projectKey;
+    private final Long issueType;
+    private final List<AbstractFields> fields;
+    private final FieldInput[] prebuiltInputs;
+
+    /**
+     * Constructor
+     * @param projectKey
+     * @param issueType
+     * @param templates the default fields, applied first
+     * @param configs the configured fields, overriding the templates
+     */
+    public IssueTemplate(String projectKey, Long issueType, List<AbstractFields> templates,
+                         List<AbstractFields> configs) {
+        this.projectKey = projectKey;
+        this.issueType = issueType;
+
+        List<AbstractFields> all = new ArrayList<>(templates);
+        if (configs != null) {
+            all.addAll(configs);
+        }
+
+        //walk backwards, so that only the last field with a given key is kept
+        List<AbstractFields> kept = new ArrayList<>();
+        Set<String> seenKeys = new HashSet<>();
+        for (int i = all.size() - 1; i >= 0; i--) {
+            AbstractFields field = all.get(i);
+            String key = field.getFieldKey();
+            if (key != null && !seenKeys.add(key)) {
+                continue;
+            }
+            kept.add(0, field);
+        }
+
+        this.fields = kept;
+        this.prebuiltInputs = new FieldInput[kept.size()];
+        for (int i = 0; i < kept.size(); i++) {
+            AbstractFields field = kept.get(i);
+            if (field.isConstant()) {
+                prebuiltInputs[i] = field.getFieldInput(null, null);
+            }
+        }
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public Long getIssueType() {
+        return issueType;
+    }
+
+    /**
+     * Getter for the fields of this template, in the order they are applied
+     * @return
+     */
+    public List<AbstractFields> getFields() {
+        return fields;
+    }
+
+    /**
+     * Getter for the names of the environment variables that can be used when building the issue input, the only
+     * ones saved with the builds
+     * @return
+     */
+    public Set<String> getEnvVarNames() {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            if (prebuiltInputs[i] != null) {
+                continue;
+            }
+            for (String text : fields.get(i).getTemplates()) {
+                VariableExpander.collectEnvVarNames(text, names);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Builds the issue input for a test
+     * @param test
+     * @param envVars
+     * @return
+     */
+    public IssueInput build(TestResult test, EnvVars envVars) {
+        return build(new ExpansionContext(test, envVars));
+    }
+
+    /**
+     * Builds the issue input for a test, all the fields share the values of the variables from the context
+     * @param context
+     * @return
+     */
+    public IssueInput build(ExpansionContext context) {
+        return build(context, null);
+    }
+
+    /**
+     * Builds the issue input for a test, adding a label to the configured ones
+     * @param context
+     * @param label the label to add, can be null
+     * @return
+     */
+    public IssueInput build(ExpansionContext context, String label) {
+        IssueInputBuilder builder = new IssueInputBuilder(projectKey, issueType);
+        for (int i = 0; i < fields.size(); i++) {
+            FieldInput input = prebuiltInputs[i];
+            if (input == null) {
+                input = fields.get(i).getFieldInput(context);
+            }
+            if (label != null && LABELS_FIELD.equals(input.getId()) && input.getValue() instanceof List) {
+                List<Object> labels = new ArrayList<Object>((List<?>) input.getValue());
+                labels.add(label);
+                input = new FieldInput(LABELS_FIELD, labels);
+                label = null;
+            }
+            builder.setFieldInput(input);
+        }
+        if (label != null) {
+            builder.setFieldInput(new FieldInput(LABELS_FIELD, Collections.singletonList(label)));
+        }
+        return builder.build();
+    }
+}
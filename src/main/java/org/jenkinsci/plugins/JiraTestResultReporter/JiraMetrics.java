@@ -0,0 +1,258 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.RestClientException;
+import com.atlassian.util.concurrent.Promise;
+import hudson.model.Job;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the interaction with Jira: latency histograms and error counts for each kind of request, the issues
+ * created, resolved and skipped for each job, the hits and misses of the caches, and the sizes of the caches and
+ * queues. Kept in memory since Jenkins started, and served in the Prometheus text format by
+ * {@link JiraTestResultReporterPlugin#doMetrics}.
+ */
+public final class JiraMetrics {
+    public static final String CREATE_ISSUE = "create_issue";
+    public static final String DELETE_ISSUE = "delete_issue";
+    public static final String SEARCH = "search";
+    public static final String GET_ISSUE = "get_issue";
+    public static final String GET_TRANSITIONS = "get_transitions";
+    public static final String TRANSITION = "transition";
+    public static final String CREATEMETA = "createmeta";
+    public static final String STATUSES = "statuses";
+    public static final String PROJECTS = "projects";
+    public static final String GET_USER = "get_user";
+    public static final String SERVER_INFO = "server_info";
+
+    public static final String METADATA_CACHE = "metadata";
+    public static final String PROJECT_CATALOG = "project_catalog";
+    public static final String STATUSES_CACHE = "statuses";
+    public static final String RECENT_ISSUES_CACHE = "recent_issues";
+    public static final String REMOTE_VARIABLES_CACHE = "remote_variables";
+
+    private static final String PREFIX = "jira_test_result_reporter_";
+    /**
+     * Upper bounds of the latency buckets, in seconds
+     */
+    private static final double[] BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    /**
+     * Latency histogram of one kind of request, the last bucket counts the requests slower than all the bounds
+     */
+    private static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+    }
+
+    private static final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, AtomicLong> issues = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, AtomicLong> cacheRequests = new ConcurrentHashMap<String, AtomicLong>();
+
+    private JiraMetrics() {
+    }
+
+    /**
+     * Waits for the result of a request, recording its latency, and its error if it fails. The request is sent when
+     * the promise is created, so only the waiting is timed, which is almost all of it.
+     * @param call the kind of request, one of the constants of this class
+     * @param promise
+     * @param <T>
+     * @return the result of the request
+     */
+    public static <T> T claim(String call, Promise<T> promise) {
+        long start = System.nanoTime();
+        try {
+            T result = promise.claim();
+            recordLatency(call, System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            recordLatency(call, System.nanoTime() - start);
+            recordError(call, e);
+            throw e;
+        }
+    }
+
+    private static void recordLatency(String call, long nanos) {
+        Histogram histogram = latencies.get(call);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = latencies.putIfAbsent(call, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    private static void recordError(String call, RuntimeException e) {
+        String status = "none";
+        if (e instanceof RestClientException && ((RestClientException) e).getStatusCode().isPresent()) {
+            status = String.valueOf(((RestClientException) e).getStatusCode().get());
+        }
+        increment(errors, labels("call", call, "status", status));
+    }
+
+    /**
+     * Records what happened to the issue of a test in a build
+     * @param job
+     * @param outcome
+     */
+    public static void recordIssue(Job job, JiraTestData.IssueOutcome outcome) {
+        increment(issues, labels("job", job.getFullName(), "outcome", outcome.name().toLowerCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * Drops the issue counters of a job, or of all the jobs inside a folder, so that the counters of deleted or
+     * renamed jobs are not kept until Jenkins restarts
+     * @param fullName the full name of the job or folder
+     */
+    public static void removeJob(String fullName) {
+        String jobLabel = "job=\"" + escape(fullName) + "\",";
+        String folderPrefix = "job=\"" + escape(fullName + "/");
+        for (Iterator<String> it = issues.keySet().iterator(); it.hasNext(); ) {
+            String labels = it.next();
+            if (labels.startsWith(jobLabel) || labels.startsWith(folderPrefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Records a lookup in a cache
+     * @param cache the name of the cache, one of the constants of this class
+     * @param result "hit", "miss", or "stale" for expired values that are served while they are refreshed
+     */
+    public static void recordCacheLookup(String cache, String result) {
+        increment(cacheRequests, labels("cache", cache, "result", result));
+    }
+
+    /**
+     * Records a lookup in a cache
+     * @param cache the name of the cache, one of the constants of this class
+     * @param hit
+     */
+    public static void recordCacheLookup(String cache, boolean hit) {
+        recordCacheLookup(cache, hit ? "hit" : "miss");
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String labels) {
+        AtomicLong counter = counters.get(labels);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(labels, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static String labels(String name1, String value1, String name2, String value2) {
+        return name1 + "=\"" + escape(value1) + "\"," + name2 + "=\"" + escape(value2) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format
+     * @param out
+     * @throws IOException
+     */
+    public static void write(Writer out) throws IOException {
+        String name = PREFIX + "request_duration_seconds";
+        writeHeader(out, name, "Latency of the requests to Jira", "histogram");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(latencies).entrySet()) {
+            String call = "call=\"" + escape(entry.getKey()) + "\"";
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += histogram.buckets.get(i);
+                writeSample(out, name + "_bucket", call + ",le=\"" + BUCKETS[i] + "\"", cumulative);
+            }
+            cumulative += histogram.buckets.get(BUCKETS.length);
+            writeSample(out, name + "_bucket", call + ",le=\"+Inf\"", cumulative);
+            out.write(name + "_sum{" + call + "} " + histogram.sumNanos.get() / (double) TimeUnit.SECONDS.toNanos(1)
+                    + "\n");
+            writeSample(out, name + "_count", call, histogram.count.get());
+        }
+
+        writeCounters(out, PREFIX + "request_errors_total", "Failed requests to Jira, by HTTP status", errors);
+        writeCounters(out, PREFIX + "issues_total", "Issues created, resolved and skipped by builds", issues);
+        writeCounters(out, PREFIX + "cache_requests_total", "Lookups in the caches of Jira data", cacheRequests);
+
+        JiraTestDataPublisher.JiraTestDataPublisherDescriptor descriptor = JiraUtils.getJiraDescriptor();
+        if (descriptor != null) {
+            writeGauge(out, PREFIX + "metadata_cache_entries", "Entries in the field metadata cache",
+                    descriptor.getMetadataCache().size());
+            writeGauge(out, PREFIX + "metadata_fetches_in_flight", "Metadata requests waiting for Jira",
+                    descriptor.getMetadataCache().getFetchesInFlight());
+            writeGauge(out, PREFIX + "project_catalog_entries", "Entries in the project catalog",
+                    descriptor.getProjectCatalog().size());
+        }
+        writeGauge(out, PREFIX + "metadata_warmup_queue", "Projects waiting to be prefetched by the metadata warm-up",
+                MetadataWarmup.getQueueDepth());
+    }
+
+    private static void writeCounters(Writer out, String name, String help, Map<String, AtomicLong> counters)
+            throws IOException {
+        writeHeader(out, name, help, "counter");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            writeSample(out, name, entry.getKey(), entry.getValue().get());
+        }
+    }
+
+    private static void writeGauge(Writer out, String name, String help, long value) throws IOException {
+        writeHeader(out, name, help, "gauge");
+        out.write(name + " " + value + "\n");
+    }
+
+    private static void writeHeader(Writer out, String name, String help, String type) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void writeSample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + "{" + labels + "} " + value + "\n");
+    }
+}
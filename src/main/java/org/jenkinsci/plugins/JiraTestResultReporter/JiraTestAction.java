@@ -26,42 +26,90 @@ import hudson.matrix.MatrixProject;
 import hudson.model.*;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.TestAction;
+import hudson.tasks.junit.TestObject;
+import hudson.tasks.junit.TestResultAction;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.JiraTestResultReporter.restclientextensions.FullStatus;
 import org.kohsuke.stapler.Ancestor;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by tuicu.
  */
 public class JiraTestAction extends TestAction implements ExtensionPoint, Describable<JiraTestAction> {
 
-    private String issueKey = null;
-    private CaseResult test;
-    private JiraTestData testData;
-    private String issueStatus;
-    private String statusColor;
-    private String issueSummary;
-    private Job job; //the same as project if it's not a matrix build
-    private AbstractProject project;
+    /**
+     * What is shown about the issue of the test. Cached actions are shared by the request threads, so the state is
+     * replaced as a whole when the issue key is reloaded or changed.
+     */
+    private static final class IssueState {
+        private static final IssueState NONE = new IssueState(null, null, null, null, null, false);
+
+        private final String issueKey;
+        private final String issueStatus;
+        private final String statusColor;
+        private final String issueSummary;
+        private final JiraTestData.IssueOutcome issueOutcome;
+        private final boolean statusFromSnapshot;
+
+        IssueState(String issueKey, String issueStatus, String statusColor, String issueSummary,
+                   JiraTestData.IssueOutcome issueOutcome, boolean statusFromSnapshot) {
+            this.issueKey = issueKey;
+            this.issueStatus = issueStatus;
+            this.statusColor = statusColor;
+            this.issueSummary = issueSummary;
+            this.issueOutcome = issueOutcome;
+            this.statusFromSnapshot = statusFromSnapshot;
+        }
+
+        /**
+         * The state after the issue of the test was changed, the status is loaded after the page is rendered
+         * @param issueKey
+         * @return
+         */
+        IssueState withIssueKey(String issueKey) {
+            return new IssueState(issueKey, null, null, null, issueOutcome, false);
+        }
+    }
+
+    /*
+     * The action keeps only identifiers and the test data of the build, which is small, the test and the job are
+     * resolved when needed and the test is referenced weakly, so actions held by Jenkins (ex. bound to a session)
+     * don't keep whole test reports in memory.
+     */
+    private String testId;
+    private String jobName; //the same as projectName if it's not a matrix build
+    private String projectName;
+    private int buildNumber = -1;
+    private transient volatile WeakReference<CaseResult> testReference;
+    private final transient JiraTestData testData;
+    private volatile IssueState state = IssueState.NONE;
 
     /**
      * Getter for issue status, called from issueStatus.jelly
-     * @return string representing the issue status
+     * @return string representing the issue status, null if it is loaded after the page is rendered
      */
     public String getIssueStatus() {
-        return issueStatus;
+        return state.issueStatus;
     }
 
     /**
      * Getter for issue color, called from issueStatus.jelly
      * @return tring representing the issue color
      */
-    public String getStatusColor() { return statusColor; }
+    public String getStatusColor() { return state.statusColor; }
 
     /**
      * Getter for environment variables
@@ -72,13 +120,43 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
     }
 
     /**
-     * Getter for the JUnit test associated with this TestAction
-     * @return the test object
+     * Getter for the JUnit test associated with this TestAction, loads the test report again if the test is no longer
+     * in memory
+     * @return the test object, null if the build or the test no longer exist
      */
     public CaseResult getTest() {
+        CaseResult test = testReference != null ? testReference.get() : null;
+        if (test != null) {
+            return test;
+        }
+
+        TestResultAction resultAction = getTestResultAction();
+        if (resultAction == null) {
+            return null;
+        }
+        TestObject testObject = resultAction.getResult().findCorrespondingResult(testId);
+        if (!(testObject instanceof CaseResult)) {
+            return null;
+        }
+        test = (CaseResult) testObject;
+        testReference = new WeakReference<CaseResult>(test);
         return test;
     }
 
+    private TestResultAction getTestResultAction() {
+        Job job = getJob();
+        Run run = job != null ? job.getBuildByNumber(buildNumber) : null;
+        return run != null ? run.getAction(TestResultAction.class) : null;
+    }
+
+    private Job getJob() {
+        return jobName != null ? Jenkins.getInstance().getItemByFullName(jobName, Job.class) : null;
+    }
+
+    private AbstractProject getProject() {
+        return projectName != null ? Jenkins.getInstance().getItemByFullName(projectName, AbstractProject.class) : null;
+    }
+
 
     /**
      * Constructor
@@ -86,7 +164,9 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      * @param test the JUnit test associated with this TestAction
      */
     public JiraTestAction(JiraTestData testData, CaseResult test) {
-        project = initProject();
+        this.testData = testData;
+        AbstractProject project = initProject();
+        Job job;
         if(project instanceof MatrixProject) {
             job = (Job) Jenkins.getInstance().getItemByFullName(testData.getEnvVars().get("JOB_NAME"));
         } else {
@@ -96,24 +176,74 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
         if(project == null || job == null)
             return; //fix for interaction with Test stability history plugin
 
-        this.testData = testData;
-        this.test = test;
-        issueKey = TestToIssueMapping.getInstance().getTestIssueKey(job, test.getId());
-        if (issueKey != null) {
-            IssueRestClient issueRestClient = JiraUtils.getJiraDescriptor().getRestClient().getIssueClient();
-            try {
-                Issue issue = issueRestClient.getIssue(issueKey).claim();
-                issueStatus = issue.getStatus().getName();
-                issueSummary = issue.getSummary();
-                JiraTestDataPublisher.JiraTestDataPublisherDescriptor jiraDescriptor = JiraUtils.getJiraDescriptor();
-                if (jiraDescriptor.getStatusesMap() != null) {
-                    FullStatus status = jiraDescriptor.getStatusesMap().get(issueStatus);
-                    statusColor = status != null ? status.getColorName() : null;
-                }
-            } catch (Exception e) {
-                JiraUtils.logError("The issue might be deleted, or there is no internet connection, etc.", e);
-            }
+        projectName = project.getFullName();
+        jobName = job.getFullName();
+        testId = test.getId();
+        Run run = test.getRun();
+        if (run != null) {
+            buildNumber = run.getNumber();
+        }
+        testReference = new WeakReference<CaseResult>(test);
+        //the status and summary are loaded by badge.jelly after the page is rendered, unless the build is an old one
+        state = getIssueState(TestToIssueMapping.getInstance().getTestIssueKey(job, testId), run);
+    }
+
+    /**
+     * Checks if the action was created for a job, it isn't when created outside of a request for a project page
+     * @return
+     */
+    boolean isInitialized() {
+        return jobName != null;
+    }
+
+    /**
+     * Checks if the action was created for the given test object
+     * @param test
+     * @return true if the test object is the one this action was created for, and it is still in memory
+     */
+    boolean isFor(CaseResult test) {
+        return testReference != null && testReference.get() == test;
+    }
+
+    /**
+     * Reloads the issue key from the mapping, called when a cached action is reused. If the job was renamed or
+     * deleted since the action was created, the issue key saved with the build is used.
+     * @param test the test of the action
+     */
+    void refreshIssueKey(CaseResult test) {
+        Job job = getJob();
+        String issueKey;
+        if (job != null) {
+            issueKey = TestToIssueMapping.getInstance().getTestIssueKey(job, testId);
+        } else {
+            JiraTestData.IssueSnapshot snapshot = testData.getSnapshot(testId);
+            issueKey = snapshot != null ? snapshot.getIssueKey() : null;
         }
+        state = getIssueState(issueKey, test.getRun());
+    }
+
+    /**
+     * Loads the outcome of the issue in this build and, for builds other than the last completed one, the status and
+     * summary the issue had at the end of the build. The snapshot is used only if the test is still linked to the same
+     * issue.
+     * @param issueKey the issue currently linked to the test
+     * @param run the build of the test
+     * @return
+     */
+    private IssueState getIssueState(String issueKey, Run run) {
+        JiraTestData.IssueSnapshot snapshot = testData.getSnapshot(testId);
+        if (snapshot == null) {
+            return IssueState.NONE.withIssueKey(issueKey);
+        }
+
+        if (run == null || run == run.getParent().getLastCompletedBuild()
+                || snapshot.getStatus() == null || issueKey == null || !issueKey.equals(snapshot.getIssueKey())) {
+            return new IssueState(issueKey, null, null, null, snapshot.getOutcome(), false);
+        }
+        Map<String, FullStatus> statuses = JiraUtils.getJiraDescriptor().getStatusesMap();
+        FullStatus fullStatus = statuses != null ? statuses.get(snapshot.getStatus()) : null;
+        return new IssueState(issueKey, snapshot.getStatus(), fullStatus != null ? fullStatus.getColorName() : null,
+                snapshot.getSummary(), snapshot.getOutcome(), true);
     }
 
     /**
@@ -133,29 +263,58 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
         return null;
     }
 
+    /**
+     * Checks if the issue status was taken from the snapshot saved with the build, called from badge.jelly
+     * @return true if the status is the one at the end of the build, false if it is loaded from Jira
+     */
+    public boolean isStatusFromSnapshot() {
+        return state.statusFromSnapshot;
+    }
+
+    /**
+     * Getter for what happened to the issue in this build, called from badge.jelly
+     * @return "created", "resolved" or "skipped", null if nothing happened to the issue in this build
+     */
+    public String getIssueOutcome() {
+        JiraTestData.IssueOutcome issueOutcome = state.issueOutcome;
+        if (issueOutcome == null || issueOutcome == JiraTestData.IssueOutcome.LINKED) {
+            return null;
+        }
+        return issueOutcome.name().toLowerCase(Locale.ENGLISH);
+    }
+
     /**
      * Getter for the issue key, called from badge.jelly
      * @return
      */
     public String getIssueKey() {
-        return issueKey;
+        return state.issueKey;
+    }
+
+    /**
+     * Getter for the full name of the job of the test, called from badge.jelly
+     * @return
+     */
+    public String getJobName() {
+        return jobName;
     }
 
     /**
      * Getter for the issue URL, called from badge.jelly
      * @return
      */
-    public String getIssueUrl() { return JiraUtils.getIssueURL(JiraUtils.getJiraDescriptor().getJiraUrl(), issueKey); }
+    public String getIssueUrl() { return JiraUtils.getIssueURL(JiraUtils.getJiraDescriptor().getJiraUrl(), getIssueKey()); }
 
     /**
      * Getter to find is the test is failing
      * @return true test is failing, false otherwise.
      */
     public boolean isTestFailing() {
-        return test.isFailed();
+        CaseResult test = getTest();
+        return test != null && test.isFailed();
     }
 
-    public String getIssueSummary() { return issueSummary; }
+    public String getIssueSummary() { return state.issueSummary; }
 
     /**
      * Method for linking an issue to this test, called from badge.jelly
@@ -164,13 +323,17 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      */
     @JavaScriptMethod
     public FormValidation setIssueKey(String issueKey) {
-        synchronized (test.getId()) {
-            if(TestToIssueMapping.getInstance().getTestIssueKey(job, test.getId()) != null) {
+        Job job = getJob();
+        if (job == null || getProject() == null) {
+            return FormValidation.error("The job no longer exists");
+        }
+        synchronized (testId) {
+            if(TestToIssueMapping.getInstance().getTestIssueKey(job, testId) != null) {
                 return null;
             }
             if (isValidIssueKey(issueKey)) {
-                this.issueKey = issueKey;
-                TestToIssueMapping.getInstance().addTestToIssueMapping(job, test.getId(), issueKey);
+                state = state.withIssueKey(issueKey);
+                TestToIssueMapping.getInstance().addTestToIssueMapping(job, testId, issueKey);
                 return null;
             }
             return FormValidation.error("Not a valid issue key");
@@ -182,8 +345,12 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      */
     @JavaScriptMethod
     public void clearIssueKey() {
-        TestToIssueMapping.getInstance().removeTestToIssueMapping(job, test.getId(), issueKey);
-        issueKey = null;
+        Job job = getJob();
+        if (job == null) {
+            return;
+        }
+        TestToIssueMapping.getInstance().removeTestToIssueMapping(job, testId, state.issueKey);
+        state = state.withIssueKey(null);
     }
 
     /**
@@ -227,12 +394,65 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      */
     @Extension
     public static class JiraTestActionDescriptor extends Descriptor<JiraTestAction> {
-
         @Override
         public String getDisplayName() {
             return clazz.getSimpleName();
         }
 
+        /**
+         * Getter for the status and summary of the issues linked to the tests of a page, called from badge.jelly
+         * after the page is loaded. Only issues linked to a test of a job the user can read are looked up.
+         * @param links {"job", "issueKey"} pairs, at most {@link JiraUtils#MAX_ISSUES_PER_SEARCH}
+         * @return issue key to {"status", "summary", "color"}, missing issues are left out
+         */
+        @JavaScriptMethod
+        public JSONObject getIssueStatuses(JSONArray links) {
+            JSONObject result = new JSONObject();
+            if (JiraUtils.getJiraDescriptor().getRestClient() == null) {
+                return result;
+            }
+            if (links.size() > JiraUtils.MAX_ISSUES_PER_SEARCH) {
+                throw new IllegalArgumentException("At most " + JiraUtils.MAX_ISSUES_PER_SEARCH
+                        + " issues can be requested at once");
+            }
+
+            Set<String> keys = new LinkedHashSet<String>();
+            Map<String, Job> jobs = new HashMap<String, Job>();
+            for (Object link : links) {
+                if (!(link instanceof JSONObject)) {
+                    continue;
+                }
+                String jobName = ((JSONObject) link).optString("job", null);
+                String issueKey = ((JSONObject) link).optString("issueKey", null);
+                if (jobName == null || issueKey == null) {
+                    continue;
+                }
+                if (!jobs.containsKey(jobName)) {
+                    // null if the job doesn't exist or the user can't read it
+                    jobs.put(jobName, Jenkins.getInstance().getItemByFullName(jobName, Job.class));
+                }
+                Job job = jobs.get(jobName);
+                if (job != null && job.hasPermission(Item.READ)
+                        && !TestToIssueMapping.getInstance().getIssueTestIds(job, issueKey).isEmpty()) {
+                    keys.add(issueKey);
+                }
+            }
+            for (Issue issue : JiraUtils.getIssues(keys).values()) {
+                putIssueStatus(result, issue);
+            }
+            return result;
+        }
+
+        private static void putIssueStatus(JSONObject result, Issue issue) {
+            String statusName = issue.getStatus().getName();
+            JSONObject status = new JSONObject();
+            status.put("status", statusName);
+            status.put("summary", issue.getSummary());
+            Map<String, FullStatus> statuses = JiraUtils.getJiraDescriptor().getStatusesMap();
+            FullStatus fullStatus = statuses != null ? statuses.get(statusName) : null;
+            status.put("color", fullStatus != null ? fullStatus.getColorName() : null);
+            result.put(issue.getKey(), status);
+        }
     }
 
     /**
@@ -241,13 +461,21 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      */
     @JavaScriptMethod
     public FormValidation createIssue() {
-        synchronized (test.getId()) { //avoid creating duplicated issues
-            if(TestToIssueMapping.getInstance().getTestIssueKey(job, test.getId()) != null) {
+        Job job = getJob();
+        if (job == null || getProject() == null) {
+            return FormValidation.error("The job no longer exists");
+        }
+        synchronized (testId) { //avoid creating duplicated issues
+            if(TestToIssueMapping.getInstance().getTestIssueKey(job, testId) != null) {
                 return null;
             }
 
+            CaseResult test = getTest();
+            if (test == null) {
+                return FormValidation.error("The test report of this build is no longer available");
+            }
             try {
-                String issueKey = JiraUtils.createIssueInput(project, test, testData.getEnvVars());
+                String issueKey = JiraUtils.createIssueInput(getProject(), test, getEnvVars());
                 return setIssueKey(issueKey);
             } catch (RestClientException e) {
                 JiraUtils.logError("Error when creating issue", e);
@@ -262,12 +490,12 @@ public class JiraTestAction extends TestAction implements ExtensionPoint, Descri
      * @return true for valid issue key, false otherwise.
      */
     public boolean isValidIssueKey(String issueKey) {
-        if(JobConfigMapping.getInstance().getIssueKeyPattern(project).matcher(issueKey).matches() == false)
+        if(JobConfigMapping.getInstance().getIssueKeyPattern(getProject()).matcher(issueKey).matches() == false)
             return false;
         IssueRestClient restClient = JiraUtils.getJiraDescriptor().getRestClient().getIssueClient();
         try {
             Promise<Issue> issuePromise = restClient.getIssue(issueKey);
-            Issue issue = issuePromise.claim();
+            Issue issue = JiraMetrics.claim(JiraMetrics.GET_ISSUE, issuePromise);
         }catch (RestClientException e) {
             JiraUtils.logError("Error when validating issue", e);
             return false;
@@ -15,27 +15,156 @@
  */
 package org.jenkinsci.plugins.JiraTestResultReporter;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import hudson.EnvVars;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.junit.TestObject;
 import hudson.tasks.junit.TestResultAction;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by tuicu.
  */
 public class JiraTestData extends TestResultAction.Data {
+    private static final int MAX_CACHED_ACTIONS = 1000;
+    /**
+     * Environment variables read by the plugin itself, always saved with the build
+     */
+    private static final List<String> PLUGIN_ENV_VARS = Arrays.asList("JOB_NAME", "BUILD_TAG");
+    /**
+     * Names and values repeat across the builds of a job (JOB_NAME, NODE_NAME, ...), only one copy is kept
+     */
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    /**
+     * What happened to the issue of a test in a build
+     */
+    public enum IssueOutcome {
+        /** The issue was created in the build */
+        CREATED,
+        /** The issue was resolved in the build */
+        RESOLVED,
+        /** The issue was not created, because it would have been a duplicate or the daily limit was reached */
+        SKIPPED,
+        /** The issue was linked before the build */
+        LINKED
+    }
+
+    /**
+     * The issue linked to a test, as it was at the end of the build. Saved with the build, so the test reports of
+     * old builds can be rendered without calling Jira.
+     */
+    public static final class IssueSnapshot {
+        private final String issueKey;
+        private final String status;
+        private final String summary;
+        private final IssueOutcome outcome;
+
+        /**
+         * Constructor
+         * @param issueKey null if no issue is linked
+         * @param status null if the issue could not be fetched
+         * @param summary null if the issue could not be fetched
+         * @param outcome
+         */
+        public IssueSnapshot(String issueKey, String status, String summary, IssueOutcome outcome) {
+            this.issueKey = issueKey;
+            this.status = status;
+            this.summary = summary;
+            this.outcome = outcome;
+        }
+
+        public String getIssueKey() { return issueKey; }
+
+        public String getStatus() { return status; }
+
+        public String getSummary() { return summary; }
+
+        public IssueOutcome getOutcome() { return outcome; }
+    }
+
     private final EnvVars envVars;
+    private final Map<String, IssueSnapshot> snapshots;
+    /**
+     * The actions created for the tests of this build, by test id. The actions are weakly referenced, so the cache
+     * does not keep them (and their tests) in memory.
+     */
+    private transient Map<String, WeakReference<JiraTestAction>> actionCache;
 
     /**
      * Constructor
      * @param envVars environment variables associated with this build
      */
     public JiraTestData(EnvVars envVars) {
+        this(envVars, null);
+    }
+
+    /**
+     * Constructor
+     * @param envVars environment variables associated with this build
+     * @param snapshots test id to the snapshot of its issue, taken at the end of the build
+     */
+    public JiraTestData(EnvVars envVars, Map<String, IssueSnapshot> snapshots) {
         this.envVars = envVars;
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Copies the environment variables that can be used by the templates of a job, so that only those are saved
+     * with the build. Names and values are interned.
+     * @param envVars the environment variables of the build
+     * @param names the names of the variables used by the templates
+     * @return
+     */
+    static EnvVars captureEnvVars(EnvVars envVars, Collection<String> names) {
+        EnvVars captured = new EnvVars();
+        for (String name : names) {
+            putInterned(captured, name, envVars.get(name));
+        }
+        for (String name : PLUGIN_ENV_VARS) {
+            putInterned(captured, name, envVars.get(name));
+        }
+        return captured;
+    }
+
+    private static void putInterned(EnvVars envVars, String name, String value) {
+        if (value != null) {
+            envVars.put(INTERNER.intern(name), INTERNER.intern(value));
+        }
+    }
+
+    /**
+     * Interns the environment variables loaded from disk. Builds recorded by older versions have all the
+     * environment variables of the build.
+     * @return
+     */
+    private Object readResolve() {
+        if (envVars == null) {
+            return this;
+        }
+        EnvVars interned = new EnvVars();
+        for (Map.Entry<String, String> entry : envVars.entrySet()) {
+            putInterned(interned, entry.getKey(), entry.getValue());
+        }
+        return new JiraTestData(interned, snapshots);
+    }
+
+    /**
+     * Getter for the snapshot of the issue of a test
+     * @param testId
+     * @return the snapshot, or null if the test had no issue in this build, or the build is from an older version
+     */
+    public IssueSnapshot getSnapshot(String testId) {
+        return snapshots != null ? snapshots.get(testId) : null;
     }
 
     /**
@@ -56,10 +185,44 @@ public class JiraTestData extends TestResultAction.Data {
     public List<? extends TestAction> getTestAction(TestObject testObject) {
         if (testObject instanceof CaseResult) {
             CaseResult test = (CaseResult) testObject;
-            return Collections.singletonList(new JiraTestAction(this, test));
+            return Collections.singletonList(getOrCreateTestAction(test));
         }
 
         return Collections.emptyList();
     }
 
+    /**
+     * Getter for the action of a test, reuses the action created for the same test object if it is still in memory
+     * @param test
+     * @return
+     */
+    private JiraTestAction getOrCreateTestAction(CaseResult test) {
+        Map<String, WeakReference<JiraTestAction>> cache = getActionCache();
+        WeakReference<JiraTestAction> reference = cache.get(test.getId());
+        JiraTestAction action = reference != null ? reference.get() : null;
+        if (action != null && action.isFor(test)) {
+            action.refreshIssueKey(test);
+            return action;
+        }
+
+        action = new JiraTestAction(this, test);
+        if (action.isInitialized()) {
+            cache.put(test.getId(), new WeakReference<JiraTestAction>(action));
+        }
+        return action;
+    }
+
+    private synchronized Map<String, WeakReference<JiraTestAction>> getActionCache() {
+        if (actionCache == null) {
+            actionCache = Collections.synchronizedMap(
+                    new LinkedHashMap<String, WeakReference<JiraTestAction>>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, WeakReference<JiraTestAction>> eldest) {
+                            return size() > MAX_CACHED_ACTIONS || eldest.getValue().get() == null;
+                        }
+                    });
+        }
+        return actionCache;
+    }
+
 }
@@ -17,7 +17,6 @@ package org.jenkinsci.plugins.JiraTestResultReporter;
 
 import com.atlassian.jira.rest.client.api.*;
 import com.atlassian.jira.rest.client.api.domain.*;
-import com.atlassian.jira.rest.client.api.domain.Project;
 import com.atlassian.jira.rest.client.api.domain.input.IssueInput;
 import com.atlassian.jira.rest.client.api.domain.input.IssueInputBuilder;
 import com.atlassian.jira.rest.client.api.domain.input.TransitionInput;
@@ -35,6 +34,7 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.jenkinsci.plugins.JiraTestResultReporter.config.AbstractFields;
@@ -56,9 +56,11 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Created by tuicu.
@@ -113,6 +115,14 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 	public String getMaxNoofBugs() {
 		return JobConfigMapping.getInstance().getMaxNoofBugs(getJobName());
 	}
+
+	public String getStaleLinkDays() {
+		return JobConfigMapping.getInstance().getStaleLinkDays(getJobName());
+	}
+
+	public String getStaleLinkBuilds() {
+		return JobConfigMapping.getInstance().getStaleLinkBuilds(getJobName());
+	}
 	
 	/**
 	 * Getter for the project associated with this publisher
@@ -135,7 +145,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 	@DataBoundConstructor
 	public JiraTestDataPublisher(List<AbstractFields> configs,
 			String projectKey, String issueType, boolean autoRaiseIssue,
-			boolean autoResolveIssue, boolean preventDuplicateIssue,String maxNoofBugs) {
+			boolean autoResolveIssue, boolean preventDuplicateIssue,String maxNoofBugs,
+			String staleLinkDays, String staleLinkBuilds) {
 		AbstractProject project = Stapler.getCurrentRequest()
 				.findAncestorObject(AbstractProject.class);
 		TestToIssueMapping.getInstance().register(project);
@@ -147,7 +158,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 		}
 		JobConfigMapping.getInstance().saveConfig(project, projectKey,
 				defaultIssueType, Util.fixNull(configs), autoRaiseIssue,
-				autoResolveIssue, preventDuplicateIssue,maxNoofBugs);
+				autoResolveIssue, preventDuplicateIssue,maxNoofBugs,
+				staleLinkDays, staleLinkBuilds);
 	}
 
 	/**
@@ -178,20 +190,84 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 			project = (AbstractProject) job;
 		}
 
+		List<CaseResult> testCaseResults = getTestCaseResults(testResult);
+		List<String> testIds = new ArrayList<>(testCaseResults.size());
+		for (CaseResult test : testCaseResults) {
+			testIds.add(test.getId());
+		}
+		TestToIssueMapping.getInstance().markSeen(job, testIds,
+				run.getNumber(), run.getTimeInMillis());
+
+		Map<String, JiraTestData.IssueOutcome> outcomes = new HashMap<>();
 		if (JobConfigMapping.getInstance().getAutoRaiseIssue(project)) {
-			raiseIssues(listener, project, job, envVars,
-					getTestCaseResults(testResult));
+			raiseIssues(listener, project, job, envVars, testCaseResults, outcomes);
 		}
 
 		if (JobConfigMapping.getInstance().getAutoResolveIssue(project)) {
-			resolveIssues(listener, project, job, envVars,
-					getTestCaseResults(testResult));
+			resolveIssues(listener, project, job, envVars, testCaseResults, outcomes);
+		}
+		for (JiraTestData.IssueOutcome outcome : outcomes.values()) {
+			JiraMetrics.recordIssue(job, outcome);
+		}
+		IssueTemplate template = JobConfigMapping.getInstance()
+				.getIssueTemplate(project);
+		Collection<String> envVarNames = template != null ? template
+				.getEnvVarNames() : Collections.<String> emptySet();
+		return new JiraTestData(JiraTestData.captureEnvVars(envVars,
+				envVarNames), takeIssueSnapshots(job, testCaseResults, outcomes));
+	}
+
+	/**
+	 * Method for taking the snapshots of the issues linked to the tests, at
+	 * the end of the build. The issues are fetched with one search for each
+	 * 100 issues.
+	 * 
+	 * @param job
+	 * @param testCaseResults
+	 * @param outcomes
+	 *            what happened to the issues of the tests in this build
+	 * @return test id to snapshot, for the tests with an issue or an outcome
+	 */
+	private Map<String, JiraTestData.IssueSnapshot> takeIssueSnapshots(
+			Job job, List<CaseResult> testCaseResults,
+			Map<String, JiraTestData.IssueOutcome> outcomes) {
+		Map<String, String> issueKeys = new HashMap<>();
+		for (CaseResult test : testCaseResults) {
+			String issueKey = TestToIssueMapping.getInstance()
+					.getTestIssueKey(job, test.getId());
+			if (issueKey != null) {
+				issueKeys.put(test.getId(), issueKey);
+			}
+		}
+
+		Map<String, Issue> issues = new HashMap<>();
+		if (!issueKeys.isEmpty()) {
+			try {
+				issues = JiraUtils.getIssues(issueKeys.values());
+			} catch (Exception e) {
+				JiraUtils.logWarning("Could not take the snapshots of the issues", e);
+			}
 		}
-		return new JiraTestData(envVars);
+
+		Map<String, JiraTestData.IssueSnapshot> snapshots = new HashMap<>();
+		for (CaseResult test : testCaseResults) {
+			String issueKey = issueKeys.get(test.getId());
+			JiraTestData.IssueOutcome outcome = outcomes.get(test.getId());
+			if (issueKey == null && outcome == null) {
+				continue;
+			}
+			Issue issue = issueKey != null ? issues.get(issueKey) : null;
+			snapshots.put(test.getId(), new JiraTestData.IssueSnapshot(issueKey,
+					issue != null ? issue.getStatus().getName() : null,
+					issue != null ? issue.getSummary() : null,
+					outcome != null ? outcome : JiraTestData.IssueOutcome.LINKED));
+		}
+		return snapshots;
 	}
 
 	private void resolveIssues(TaskListener listener, AbstractProject project,
-			Job job, EnvVars envVars, List<CaseResult> testCaseResults) {
+			Job job, EnvVars envVars, List<CaseResult> testCaseResults,
+			Map<String, JiraTestData.IssueOutcome> outcomes) {
 
 		for (CaseResult test : testCaseResults) {
 			if (test.isPassed()
@@ -204,15 +280,27 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 							.getTestIssueKey(job, test.getId());
 					IssueRestClient issueRestClient = getDescriptor()
 							.getRestClient().getIssueClient();
-					Issue issue = issueRestClient.getIssue(issueKey).claim();
+					Issue issue = JiraMetrics.claim(JiraMetrics.GET_ISSUE,
+							issueRestClient.getIssue(issueKey));
 					boolean transitionExecuted = false;
-					for (Transition transition : issueRestClient
-							.getTransitions(issue).claim()) {
+					for (Transition transition : JiraMetrics.claim(
+							JiraMetrics.GET_TRANSITIONS,
+							issueRestClient.getTransitions(issue))) {
 						if (transition.getName().toLowerCase()
 								.contains("resolve")) {
-							issueRestClient.transition(issue,
-									new TransitionInput(transition.getId()));
+							try {
+								JiraMetrics.claim(JiraMetrics.TRANSITION,
+										issueRestClient.transition(issue,
+												new TransitionInput(transition
+														.getId())));
+							} catch (RestClientException e) {
+								JiraUtils.logError("Error when resolving issue "
+										+ issueKey, e);
+								break;
+							}
 							transitionExecuted = true;
+							JiraUtils.forgetRecentIssue(issueKey);
+							outcomes.put(test.getId(), JiraTestData.IssueOutcome.RESOLVED);
 							break;
 						}
 					}
@@ -229,7 +317,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 	}
 
 	private void raiseIssues(TaskListener listener, AbstractProject project,
-			Job job, EnvVars envVars, List<CaseResult> testCaseResults) {
+			Job job, EnvVars envVars, List<CaseResult> testCaseResults,
+			Map<String, JiraTestData.IssueOutcome> outcomes) {
 		for (CaseResult test : testCaseResults) {
 			if (test.isFailed()&& TestToIssueMapping.getInstance().getTestIssueKey(job,
 					test.getId()) == null) {
@@ -240,6 +329,7 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 						continue;
 					}
 					try {
+						ExpansionContext context = new ExpansionContext(test, envVars);
 						boolean MaxBugsForDay = false;
 						String MaxBugs =JobConfigMapping.getInstance().getMaxNoofBugs(project);
 								
@@ -258,11 +348,18 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 
 								
 							if(MaxBugsForDay){
+									outcomes.put(test.getId(), JiraTestData.IssueOutcome.SKIPPED);
 									listener.getLogger().println("Max Number of Bugs already logged for the day : " + MaxBugs +" hence ignoring creating issue");}
                             else{
                             	   boolean foundDuplicate = false;
 								      if (JobConfigMapping.getInstance().getPreventDuplicateIssue(project)) {
-										  SearchResult searchResult = JiraUtils.findIssues(project, test, envVars);
+										  String recentIssue = JiraUtils.findRecentIssue(project, context);
+										  SearchResult searchResult = recentIssue == null ? JiraUtils.findIssues(project, context) : null;
+										  			if (recentIssue != null) {
+										  				foundDuplicate = true;
+										  				listener.getLogger()
+										  						.println("Duplicate Issue which currently exists:" + recentIssue);
+										  			}
 										  			if (searchResult != null) {
 															for (Issue issue : searchResult.getIssues()) {
 																foundDuplicate = true;
@@ -273,10 +370,13 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 								                          }
 							                           }
 	
-							if (foundDuplicate) {listener.getLogger().println("Ignoring creating issue as it would be a duplicate.");}
+							if (foundDuplicate) {
+								outcomes.put(test.getId(), JiraTestData.IssueOutcome.SKIPPED);
+								listener.getLogger().println("Ignoring creating issue as it would be a duplicate.");}
 							else {
-								String issueKey = JiraUtils.createIssueInput(project, test, envVars);
+								String issueKey = JiraUtils.createIssueInput(project, context);
 								TestToIssueMapping.getInstance().addTestToIssueMapping(job, test.getId(),issueKey);
+								outcomes.put(test.getId(), JiraTestData.IssueOutcome.CREATED);
 								listener.getLogger().println(
 										"Created issue " + issueKey + " for test "
 												+ test.getFullDisplayName());
@@ -341,6 +441,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 
 		private static final String DEFAULT_SUMMARY = "${TEST_FULL_NAME} : ${TEST_ERROR_DETAILS}";
 		private static final String DEFAULT_DESCRIPTION = "${BUILD_URL}${CRLF}${TEST_STACK_TRACE}";
+		private static final int DEFAULT_MAX_VARIABLE_LENGTH = 10000;
+		private static final int MAX_AUTOCOMPLETE_PROJECTS = 20;
 		public static final List<AbstractFields> templates;
 		static {
 			templates = new ArrayList<>();
@@ -353,11 +455,14 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 		private transient JiraRestClient restClient;
 		private transient JiraRestClientExtension restClientExtension;
 		private final transient MetadataCache metadataCache = new MetadataCache();
+		private final transient ProjectCatalog projectCatalog = new ProjectCatalog();
 		private URI jiraUri = null;
 		private String username = null;
 		private Secret password = null;
 		private String defaultSummary;
 		private String defaultDescription;
+		private String maxVariableLength;
+		private boolean searchBySummary;
 
 		public URI getJiraUri() {
 			return jiraUri;
@@ -400,6 +505,34 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 					: DEFAULT_DESCRIPTION;
 		}
 
+		/**
+		 * Getter for the maximum number of characters for the variables that can
+		 * expand to large values (stdout, stderr, stack trace, overview)
+		 * 
+		 * @return
+		 */
+		public int getMaxVariableLength() {
+			if (maxVariableLength != null && !maxVariableLength.trim().equals("")) {
+				try {
+					return Integer.parseInt(maxVariableLength.trim());
+				} catch (NumberFormatException e) {
+					JiraUtils.logWarning("Invalid maximum variable length "
+							+ maxVariableLength);
+				}
+			}
+			return DEFAULT_MAX_VARIABLE_LENGTH;
+		}
+
+		/**
+		 * Getter for the option to also search duplicates by summary, for the
+		 * issues created before the fingerprint labels were added
+		 * 
+		 * @return
+		 */
+		public boolean isSearchBySummary() {
+			return searchBySummary;
+		}
+
 		/**
 		 * Getter for the statuses map, contains information about status
 		 * category of each status
@@ -407,6 +540,9 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 		 * @return
 		 */
 		public Map<String, FullStatus> getStatusesMap() {
+			Map<String, FullStatus> statuses = this.statuses;
+			JiraMetrics.recordCacheLookup(JiraMetrics.STATUSES_CACHE,
+					statuses != null);
 			return statuses;
 		}		
 
@@ -422,6 +558,71 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 			return metadataCache.getCacheEntry(projectKey, issueType);
 		}
 
+		/**
+		 * Searches the allowed values of a field, for the filter of the
+		 * selectable fields in the job configuration page. The values are
+		 * only listed to users allowed to configure the job.
+		 * 
+		 * @param jobName
+		 *            the full name of the job being configured
+		 * @param projectKey
+		 * @param issueType
+		 * @param fieldKey
+		 * @param prefix
+		 * @param offset
+		 * @return a page of values, with the total number of matches
+		 */
+		public JSONObject searchAllowedValues(String jobName,
+				String projectKey, String issueType, String fieldKey,
+				String prefix, int offset) {
+			Job job = jobName != null ? Jenkins.getInstance()
+					.getItemByFullName(jobName, Job.class) : null;
+			if (job != null) {
+				job.checkPermission(Item.CONFIGURE);
+			}
+			MetadataCache.CacheEntry entry = job != null ? getCacheEntry(
+					projectKey, issueType) : null;
+			if (entry == null) {
+				JSONObject result = new JSONObject();
+				result.put("values", new JSONArray());
+				result.put("total", 0);
+				return result;
+			}
+			return entry.searchAllowedValues(fieldKey, prefix, offset,
+					MetadataCache.SEARCH_PAGE_SIZE);
+		}
+
+		/**
+		 * Getter for the full name of the job whose configuration page is
+		 * being rendered, sent back by the filter of the selectable fields
+		 * since the bound JavaScript methods are not called under the job URL
+		 * 
+		 * @return the full name of the job, or null outside a job
+		 */
+		public String getConfiguredJobName() {
+			StaplerRequest req = Stapler.getCurrentRequest();
+			Job job = req != null ? req.findAncestorObject(Job.class) : null;
+			return job != null ? job.getFullName() : null;
+		}
+
+		/**
+		 * Getter for the metadata cache
+		 * 
+		 * @return
+		 */
+		MetadataCache getMetadataCache() {
+			return metadataCache;
+		}
+
+		/**
+		 * Getter for the project catalog
+		 * 
+		 * @return
+		 */
+		ProjectCatalog getProjectCatalog() {
+			return projectCatalog;
+		}
+
 		/**
 		 * Method for resolving transient objects after deserialization. Called
 		 * by the JVM. See Java documentation for more details.
@@ -473,6 +674,9 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 				return false;
 			}
 
+			URI previousUri = jiraUri;
+			String previousUsername = username;
+			Secret previousPassword = password;
 			try {
 				jiraUri = new URI(json.getString("jiraUrl"));
 			} catch (URISyntaxException e) {
@@ -481,6 +685,11 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 
 			username = json.getString("username");
 			password = Secret.fromString(json.getString("password"));
+			// the cached metadata depends on the server and on what the user can see
+			boolean serverChanged = !Objects.equals(previousUri, jiraUri)
+					|| !Objects.equals(previousUsername, username)
+					|| previousPassword == null
+					|| !previousPassword.getPlainText().equals(password.getPlainText());
 
 			AsynchronousJiraRestClientFactory factory = new AsynchronousJiraRestClientFactory();
 			restClient = factory.createWithBasicHttpAuthentication(jiraUri,
@@ -491,6 +700,12 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 									password.getPlainText())));
 			defaultSummary = json.getString("summary");
 			defaultDescription = json.getString("description");
+			maxVariableLength = json.optString("maxVariableLength");
+			searchBySummary = json.optBoolean("searchBySummary");
+			if (serverChanged) {
+				metadataCache.clear();
+				projectCatalog.clear();
+			}
 			tryCreatingStatusToCategoryMap();
 			save();
 			return super.configure(req, json);
@@ -500,10 +715,10 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 		 * method for creating the status category map, if the Jira server knows
 		 * about categories
 		 */
-		private void tryCreatingStatusToCategoryMap() {
+		void tryCreatingStatusToCategoryMap() {
 			try {
-				Iterable<FullStatus> statuses = restClientExtension
-						.getStatuses().claim();
+				Iterable<FullStatus> statuses = JiraMetrics.claim(
+						JiraMetrics.STATUSES, restClientExtension.getStatuses());
 				Map<String, FullStatus> statusHashMap = new HashMap<>();
 				for (FullStatus status : statuses) {
 					statusHashMap.put(status.getName(), status);
@@ -568,7 +783,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 								pass.getPlainText());
 				MetadataRestClient client = restClient.getMetadataClient();
 				Promise<ServerInfo> serverInfoPromise = client.getServerInfo();
-				ServerInfo serverInfo = serverInfoPromise.claim();
+				ServerInfo serverInfo = JiraMetrics.claim(
+						JiraMetrics.SERVER_INFO, serverInfoPromise);
 				serverName = serverInfo.getServerTitle();
 			} catch (MalformedURLException e) {
 				return FormValidation.error("Invalid URL");
@@ -599,20 +815,33 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 			if (getRestClient() == null)
 				return FormValidation.error("No jira site configured");
 
-			ProjectRestClient projectClient = getRestClient()
-					.getProjectClient();
-			Project project;
-			try {
-				project = projectClient.getProject(projectKey).claim();
-				if (project == null)
-					return FormValidation.error("Invalid Project Key");
-			} catch (RestClientException e) {
-				JiraUtils.logWarning("Invalid Project Key", e);
+			ProjectCatalog.ProjectInfo project = projectCatalog
+					.getProject(projectKey);
+			if (project == null)
 				return FormValidation.error("Invalid Project Key");
-			}
 			return FormValidation.ok(project.getName());
 		}
 
+		/**
+		 * Method for autocompleting the project key in the job configuration
+		 * page, from the cached list of projects
+		 * 
+		 * @param value
+		 * @return
+		 */
+		public AutoCompletionCandidates doAutoCompleteProjectKey(
+				@QueryParameter String value) {
+			AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+			if (getRestClient() == null)
+				return candidates;
+
+			for (ProjectCatalog.ProjectInfo project : projectCatalog
+					.findProjects(value, MAX_AUTOCOMPLETE_PROJECTS)) {
+				candidates.add(project.getKey());
+			}
+			return candidates;
+		}
+
 		/**
 		 * Method for filling the issue type select control in the job
 		 * configuration page
@@ -623,26 +852,18 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 		public ListBoxModel doFillIssueTypeItems(
 				@QueryParameter String projectKey) {
 			ListBoxModel m = new ListBoxModel();
-			if (projectKey.equals(""))
+			if (projectKey.equals("") || getRestClient() == null)
 				return m;
 
-			ProjectRestClient projectRestClient = getRestClient()
-					.getProjectClient();
-			try {
-				Promise<Project> projectPromise = projectRestClient
-						.getProject(projectKey);
-				Project project = projectPromise.claim();
-				OptionalIterable<IssueType> issueTypes = project
-						.getIssueTypes();
-
-				for (IssueType issueType : issueTypes) {
-					m.add(new ListBoxModel.Option(issueType.getName(),
-							issueType.getId().toString(),
-							issueType.getName() == "Bug"));
-				}
-			} catch (Exception e) {
-				JiraUtils.logError("ERROR: Unknown error", e);
+			ProjectCatalog.ProjectInfo project = projectCatalog
+					.getProject(projectKey);
+			if (project == null)
 				return m;
+
+			for (int i = 0; i < project.getIssueTypeCount(); i++) {
+				m.add(new ListBoxModel.Option(project.getIssueTypeName(i),
+						project.getIssueTypeId(i), "Bug".equals(project
+								.getIssueTypeName(i))));
 			}
 			return m;
 		}
@@ -699,7 +920,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 			BasicIssue newCreatedIssue;
 			try {
 				IssueInput newIssue = newIssueBuilder.build();
-				newCreatedIssue = issueClient.createIssue(newIssue).claim();
+				newCreatedIssue = JiraMetrics.claim(JiraMetrics.CREATE_ISSUE,
+						issueClient.createIssue(newIssue));
 			} catch (RestClientException e) {
 				JiraUtils.logError("Error when creating issue", e);
 				return FormValidation.error(JiraUtils.getErrorMessage(e, "\n"));
@@ -707,8 +929,8 @@ public class JiraTestDataPublisher extends TestDataPublisher {
 
 			// if the issue was created successfully, try to delete it
 			try {
-				restClientExtension.deteleIssue(newCreatedIssue.getKey())
-						.claim();
+				JiraMetrics.claim(JiraMetrics.DELETE_ISSUE,
+						restClientExtension.deteleIssue(newCreatedIssue.getKey()));
 			} catch (RestClientException e) {
 				JiraUtils.logError("Error when deleting issue", e);
 				return FormValidation.warning(JiraUtils
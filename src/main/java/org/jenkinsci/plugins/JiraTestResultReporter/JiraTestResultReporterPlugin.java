@@ -2,9 +2,15 @@ package org.jenkinsci.plugins.JiraTestResultReporter;
 
 import hudson.Plugin;
 import hudson.model.Api;
+import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.JiraTestResultReporter.api.TestToIssueMappingApi;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.ExportedBean;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Created by tuicu on 05/08/16.
  */
@@ -13,4 +19,20 @@ public class JiraTestResultReporterPlugin extends Plugin {
     public Api getTestToIssueMapping() {
         return new TestToIssueMappingApi();
     }
+
+    /**
+     * Serves the metrics of the interaction with Jira in the Prometheus text format, at
+     * /plugin/JiraTestResultReporter/metrics. Requires the administer permission, since the metrics name the jobs.
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        rsp.setHeader("Cache-Control", "no-store");
+        try (Writer out = rsp.getCompressedWriter(req)) {
+            JiraMetrics.write(out);
+        }
+    }
 }
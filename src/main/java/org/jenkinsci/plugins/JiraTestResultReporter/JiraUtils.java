@@ -16,12 +16,13 @@
 package org.jenkinsci.plugins.JiraTestResultReporter;
 
 import com.atlassian.jira.rest.client.api.IssueRestClient;
+import com.atlassian.jira.rest.client.api.JiraRestClient;
 import com.atlassian.jira.rest.client.api.RestClientException;
+import com.atlassian.jira.rest.client.api.SearchClient;
 import com.atlassian.jira.rest.client.api.domain.BasicIssue;
+import com.atlassian.jira.rest.client.api.domain.Issue;
 import com.atlassian.jira.rest.client.api.domain.SearchResult;
 import com.atlassian.jira.rest.client.api.domain.input.FieldInput;
-import com.atlassian.jira.rest.client.api.domain.input.IssueInput;
-import com.atlassian.jira.rest.client.api.domain.input.IssueInputBuilder;
 import com.atlassian.jira.rest.client.api.domain.util.ErrorCollection;
 import com.atlassian.util.concurrent.Promise;
 
@@ -29,20 +30,63 @@ import hudson.EnvVars;
 import hudson.model.AbstractProject;
 import hudson.tasks.test.TestResult;
 import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
 
-import org.jenkinsci.plugins.JiraTestResultReporter.config.AbstractFields;
-
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * Created by tuicu.
  */
 public class JiraUtils {
     private static final Logger LOGGER = Logger.getLogger("JiraIssuePlugin.log");
+    private static final int MAX_RECENT_ISSUES = 1000;
+    /**
+     * How long a created issue is remembered, enough for Jira to index it so that the label search finds it
+     */
+    private static final long RECENT_ISSUE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Characters with a special meaning in the Lucene syntax of the JQL text searches
+     */
+    private static final String LUCENE_RESERVED_CHARS = "+-&|!(){}[]^\"~*?:\\/";
+    static final int MAX_ISSUES_PER_SEARCH = 100;
+    private static final Pattern ISSUE_KEY_PATTERN = Pattern.compile("[A-Za-z][A-Za-z0-9_]*-\\d+");
+    /**
+     * Issues created with a fingerprint label, project key and label to issue key
+     */
+    private static final Map<String, RecentIssue> recentIssues = Collections.synchronizedMap(
+            new LinkedHashMap<String, RecentIssue>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RecentIssue> eldest) {
+                    return size() > MAX_RECENT_ISSUES;
+                }
+            });
+
+    /**
+     * An issue created by this plugin, with the time it was created
+     */
+    private static final class RecentIssue {
+        private final String issueKey;
+        private final long created;
+
+        RecentIssue(String issueKey, long created) {
+            this.issueKey = issueKey;
+            this.created = created;
+        }
+    }
 
     /**
      * Constructs the URL for an issue, given the server url and the issue key
@@ -54,6 +98,17 @@ public class JiraUtils {
         return serverURL + (serverURL.charAt(serverURL.length() - 1) == '/' ? "" : "/") + "browse/" + issueKey;
     }
 
+    /**
+     * Checks if an item full name is the given name or the name of an item nested under it
+     * (ex. "matrix/axis=value" is nested under "matrix")
+     * @param fullName the name to check
+     * @param parentFullName
+     * @return
+     */
+    public static boolean isSameOrNestedName(String fullName, String parentFullName) {
+        return fullName.equals(parentFullName) || fullName.startsWith(parentFullName + "/");
+    }
+
     public static void log(String message) {
         LOGGER.log(Level.INFO, message);
     }
@@ -104,25 +159,35 @@ public class JiraUtils {
     }
 
     public static String createIssueInput(AbstractProject project, TestResult test, EnvVars envVars) {
+        return createIssueInput(project, new ExpansionContext(test, envVars));
+    }
+
+    /**
+     * Creates an issue for the test from the context
+     * @param project
+     * @param context the expansion context of the test, the values of the variables are reused
+     * @return the key of the created issue
+     */
+    public static String createIssueInput(AbstractProject project, ExpansionContext context) {
         final IssueRestClient issueClient = JiraUtils.getJiraDescriptor().getRestClient().getIssueClient();
-        final IssueInputBuilder newIssueBuilder = new IssueInputBuilder(
-                JobConfigMapping.getInstance().getProjectKey(project),
-                JobConfigMapping.getInstance().getIssueType(project));
-        //first use the templates and then override them if other configs exist
-        for(AbstractFields f : JiraTestDataPublisher.JiraTestDataPublisherDescriptor.templates) {
-            newIssueBuilder.setFieldInput(f.getFieldInput(test, envVars));
+        IssueTemplate template = JobConfigMapping.getInstance().getIssueTemplate(project);
+        if (!JobConfigMapping.getInstance().getPreventDuplicateIssue(project)) {
+            return JiraMetrics.claim(JiraMetrics.CREATE_ISSUE, issueClient.createIssue(template.build(context))).getKey();
         }
-        for (AbstractFields f : JobConfigMapping.getInstance().getConfig(project)) {
-            newIssueBuilder.setFieldInput(f.getFieldInput(test, envVars));
-        }
-        IssueInput issueInput = newIssueBuilder.build();
-        Promise<BasicIssue> issuePromise = issueClient.createIssue(issueInput);
-        return issuePromise.claim().getKey();
+
+        String label = StackTraceFingerprint.getLabel(context);
+        Promise<BasicIssue> issuePromise = issueClient.createIssue(template.build(context, label));
+        String issueKey = JiraMetrics.claim(JiraMetrics.CREATE_ISSUE, issuePromise).getKey();
+        recentIssues.put(template.getProjectKey() + ":" + label,
+                new RecentIssue(issueKey, System.currentTimeMillis()));
+        return issueKey;
     }
     
     /**
      * To prevent the creation of duplicates lets see if we can find a pre-existing issue.
-     * It is a duplicate if it has the same summary and is open in the project.
+     * It is a duplicate if it has the same fingerprint label (see {@link StackTraceFingerprint}) and is open
+     * in the project. Issues created before the fingerprint labels were added are found by their summary, if
+     * enabled in the global configuration.
      * @param project the project
      * @param test the test
      * @param envVars the environment variables
@@ -130,11 +195,38 @@ public class JiraUtils {
      * @return a SearchResult. Empty SearchResult means nothing was found.
      */
     public static SearchResult findIssues(AbstractProject project, TestResult test, EnvVars envVars)
+    {
+        return findIssues(project, new ExpansionContext(test, envVars));
+    }
+
+    /**
+     * Same as {@link #findIssues(AbstractProject, TestResult, EnvVars)}, reusing the values of the variables
+     * already computed for the test
+     * @param project the project
+     * @param context the expansion context of the test
+     * @return a SearchResult. Empty SearchResult means nothing was found.
+     */
+    public static SearchResult findIssues(AbstractProject project, ExpansionContext context)
     {
         String projectKey = JobConfigMapping.getInstance().getProjectKey(project);
-        FieldInput fi = JiraTestDataPublisher.JiraTestDataPublisherDescriptor.templates.get(0).getFieldInput(test, envVars);
-        String jql = String.format("status != \"closed\" and project = \"%s\" and text ~ \"%s\"", projectKey, escapeJQL(fi.getValue().toString()));
-        
+        String summary = null;
+        if (getJiraDescriptor().isSearchBySummary()) {
+            FieldInput fi = JiraTestDataPublisher.JiraTestDataPublisherDescriptor.templates.get(0)
+                    .getFieldInput(context);
+            summary = fi.getValue().toString();
+        }
+        return findIssues(projectKey, StackTraceFingerprint.getLabel(context), summary);
+    }
+
+    /**
+     * Searches the open issues of a project by fingerprint label and, if none has the label, by summary
+     * @param projectKey
+     * @param label the fingerprint label of the test
+     * @param summary the summary of the issue that would be created for the test, null to search only by label
+     * @return a SearchResult. Empty SearchResult means nothing was found.
+     */
+    static SearchResult findIssues(String projectKey, String label, String summary)
+    {
         final Set<String > fields = new HashSet<String>();
         
         fields.add("summary");
@@ -143,10 +235,110 @@ public class JiraUtils {
         fields.add("updated");
         fields.add("project");
         fields.add("status");
-        
+
+        SearchClient searchClient = JiraUtils.getJiraDescriptor().getRestClient().getSearchClient();
+        String jql = String.format("project = \"%s\" and labels = \"%s\" and status != \"closed\"",
+                escapeJQL(projectKey), escapeJQL(label));
         log(jql);
-        Promise<SearchResult> searchJqlPromise = JiraUtils.getJiraDescriptor().getRestClient().getSearchClient().searchJql(jql, 50, 0, fields);
-        return searchJqlPromise.claim();
+        SearchResult result = JiraMetrics.claim(JiraMetrics.SEARCH, searchClient.searchJql(jql, 50, 0, fields));
+        if (result.getTotal() > 0 || summary == null) {
+            return result;
+        }
+
+        // issues created before the fingerprint labels were introduced don't have a label
+        jql = String.format("status != \"closed\" and project = \"%s\" and text ~ \"%s\"",
+                escapeJQL(projectKey), escapeJQLText(summary));
+        log(jql);
+        return JiraMetrics.claim(JiraMetrics.SEARCH, searchClient.searchJql(jql, 50, 0, fields));
+    }
+
+    /**
+     * Getter for several issues, with one search for each 100 keys. If a search fails (for example because an issue
+     * was deleted) the issues of that search are fetched one by one.
+     * @param issueKeys the keys of the issues, invalid keys are ignored
+     * @return issue key to issue, missing issues are left out
+     */
+    public static Map<String, Issue> getIssues(Collection<String> issueKeys)
+    {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (String key : issueKeys) {
+            if (key != null && ISSUE_KEY_PATTERN.matcher(key).matches()) {
+                keys.add(key);
+            }
+        }
+
+        final Set<String> fields = new HashSet<String>();
+        fields.add("summary");
+        fields.add("issuetype");
+        fields.add("created");
+        fields.add("updated");
+        fields.add("project");
+        fields.add("status");
+
+        JiraRestClient restClient = getJiraDescriptor().getRestClient();
+        Map<String, Issue> issues = new HashMap<String, Issue>();
+        List<String> batch = new ArrayList<String>(MAX_ISSUES_PER_SEARCH);
+        Iterator<String> it = keys.iterator();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() < MAX_ISSUES_PER_SEARCH && it.hasNext()) {
+                continue;
+            }
+            try {
+                String jql = "key in (" + StringUtils.join(batch, ",") + ")";
+                for (Issue issue : JiraMetrics.claim(JiraMetrics.SEARCH,
+                        restClient.getSearchClient().searchJql(jql, batch.size(), 0, fields)).getIssues()) {
+                    issues.put(issue.getKey(), issue);
+                }
+            } catch (RestClientException e) {
+                for (String key : batch) {
+                    try {
+                        issues.put(key, JiraMetrics.claim(JiraMetrics.GET_ISSUE, restClient.getIssueClient().getIssue(key)));
+                    } catch (Exception ex) {
+                        logWarning("The issue " + key + " might be deleted", ex);
+                    }
+                }
+            }
+            batch.clear();
+        }
+        return issues;
+    }
+
+    /**
+     * Looks up the issues recently created by this plugin, so failures with the same fingerprint don't need a
+     * search (which may also miss issues that were not indexed by Jira yet). The issues are remembered only until
+     * Jira indexed them, after that the search also checks that they are still open.
+     * @param project the project
+     * @param context the expansion context of the test
+     * @return the key of the issue, or null if no issue was created recently for the fingerprint
+     */
+    public static String findRecentIssue(AbstractProject project, ExpansionContext context)
+    {
+        String projectKey = JobConfigMapping.getInstance().getProjectKey(project);
+        String key = projectKey + ":" + StackTraceFingerprint.getLabel(context);
+        RecentIssue recentIssue = recentIssues.get(key);
+        if (recentIssue != null && System.currentTimeMillis() - recentIssue.created > RECENT_ISSUE_TTL_MILLIS) {
+            recentIssues.remove(key);
+            recentIssue = null;
+        }
+        JiraMetrics.recordCacheLookup(JiraMetrics.RECENT_ISSUES_CACHE, recentIssue != null);
+        return recentIssue != null ? recentIssue.issueKey : null;
+    }
+
+    /**
+     * Forgets a recently created issue, called when the issue is unlinked or resolved so that the next failure
+     * with the same fingerprint is not skipped as its duplicate
+     * @param issueKey
+     */
+    public static void forgetRecentIssue(String issueKey)
+    {
+        synchronized (recentIssues) {
+            for (Iterator<RecentIssue> it = recentIssues.values().iterator(); it.hasNext(); ) {
+                if (it.next().issueKey.equals(issueKey)) {
+                    it.remove();
+                }
+            }
+        }
     }
     
     
@@ -176,7 +368,7 @@ public class JiraUtils {
         fields.add("status");
    
         Promise<SearchResult> searchJqlPromise = JiraUtils.getJiraDescriptor().getRestClient().getSearchClient().searchJql(jql, 50, 0, fields);
-        return searchJqlPromise.claim().getTotal();
+        return JiraMetrics.claim(JiraMetrics.SEARCH, searchJqlPromise).getTotal();
     }
     
     /**
@@ -186,7 +378,27 @@ public class JiraUtils {
      */
     static String escapeJQL(String jql)
     {
-        // TODO - what other special chars are there?
-        return jql.replaceAll("\\[", "\\\\\\\\[").replaceAll("\\]", "\\\\\\\\]");
+        return jql.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Escape a phrase for a JQL text search (text ~ "..."). The value of the string is parsed by Jira with the
+     * Lucene syntax, so its reserved characters are escaped with a backslash, which itself is escaped in the string.
+     * @param text the phrase to search
+     * @return the phrase with the Lucene reserved characters escaped, to be quoted in the JQL query
+     */
+    static String escapeJQLText(String text)
+    {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (LUCENE_RESERVED_CHARS.indexOf(c) >= 0) {
+                escaped.append("\\\\");
+                escaped.append(c == '\\' || c == '"' ? "\\" + c : String.valueOf(c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
     }
 }
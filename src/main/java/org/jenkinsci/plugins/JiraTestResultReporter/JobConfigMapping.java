@@ -28,8 +28,12 @@ import org.jenkinsci.plugins.JiraTestResultReporter.config.FieldConfigsJsonAdapt
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -49,7 +53,10 @@ public class JobConfigMapping {
         private final boolean autoResolveIssue;
         private final boolean preventDuplicateIssue;
         private final String maxNoofBugs;
+        private final String staleLinkDays;
+        private final String staleLinkBuilds;
         private transient Pattern issueKeyPattern;
+        private transient volatile IssueTemplate issueTemplate;
 
         /**
          * Constructor
@@ -58,7 +65,8 @@ public class JobConfigMapping {
          * @param configs list with the configured fields
          */
         public JobConfigEntry(String projectKey, Long issueType, List<AbstractFields> configs,
-                              boolean autoRaiseIssue, boolean autoResolveIssue, boolean preventDuplicateIssue,String maxNoofBugs) {
+                              boolean autoRaiseIssue, boolean autoResolveIssue, boolean preventDuplicateIssue,String maxNoofBugs,
+                              String staleLinkDays, String staleLinkBuilds) {
             this.projectKey = projectKey;
             this.issueType = issueType;
             this.configs = configs;
@@ -67,6 +75,8 @@ public class JobConfigMapping {
             this.autoResolveIssue = autoResolveIssue;
             this.preventDuplicateIssue = preventDuplicateIssue;
             this.maxNoofBugs= maxNoofBugs;
+            this.staleLinkDays = staleLinkDays;
+            this.staleLinkBuilds = staleLinkBuilds;
         }
 
         /**
@@ -101,12 +111,31 @@ public class JobConfigMapping {
         
         public String getmaxNoofBugs() { return  maxNoofBugs; }
 
+        public String getStaleLinkDays() { return staleLinkDays; }
+
+        public String getStaleLinkBuilds() { return staleLinkBuilds; }
+
         /**
          * Getter for the issue key pattern
          * @return
          */
         public Pattern getIssueKeyPattern() { return issueKeyPattern; }
 
+        /**
+         * Getter for the compiled issue template, built on first use. A new entry is created each time the
+         * configuration is saved, so the template never gets stale.
+         * @return
+         */
+        public IssueTemplate getIssueTemplate() {
+            IssueTemplate template = issueTemplate;
+            if (template == null) {
+                template = new IssueTemplate(projectKey, issueType,
+                        JiraTestDataPublisher.JiraTestDataPublisherDescriptor.templates, configs);
+                issueTemplate = template;
+            }
+            return template;
+        }
+
         /**
          * Method for resolving transient objects after deserialization. Called by the JVM.
          * See Java documentation for more details.
@@ -133,7 +162,7 @@ public class JobConfigMapping {
      * Constructor. Will deserialize the existing map, or will create an empty new one
      */
     private JobConfigMapping(){
-        configMap = new HashMap<>();
+        configMap = new ConcurrentHashMap<>();
 
         for(AbstractProject project : Jenkins.getInstance().getItems(AbstractProject.class)) {
             JobConfigEntry entry = load(project);
@@ -248,12 +277,74 @@ public class JobConfigMapping {
                                         boolean autoRaiseIssue,
                                         boolean autoResolveIssue,
                                        boolean preventDuplicateIssue,
-                                       String maxNoofBugs) {
-        JobConfigEntry entry = new JobConfigEntry(projectKey, issueType, configs, autoRaiseIssue, autoResolveIssue,preventDuplicateIssue,maxNoofBugs);
+                                       String maxNoofBugs,
+                                       String staleLinkDays,
+                                       String staleLinkBuilds) {
+        JobConfigEntry entry = new JobConfigEntry(projectKey, issueType, configs, autoRaiseIssue, autoResolveIssue,preventDuplicateIssue,maxNoofBugs,
+                staleLinkDays, staleLinkBuilds);
         configMap.put(project.getFullName(), entry);
         save(project, entry);
     }
 
+    /**
+     * Method for dropping the configuration of a deleted project (and of the projects nested under it)
+     * @param fullName the full name of the deleted project
+     */
+    public synchronized void removeConfig(String fullName) {
+        Iterator<String> it = configMap.keySet().iterator();
+        while (it.hasNext()) {
+            if (JiraUtils.isSameOrNestedName(it.next(), fullName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Method for moving the configuration of a renamed or moved project (and of the projects nested under it)
+     * under the new name. The configurations are saved again in the new project directory.
+     * @param oldFullName
+     * @param newFullName
+     */
+    public synchronized void renameConfig(String oldFullName, String newFullName) {
+        Map<String, JobConfigEntry> moved = new HashMap<>();
+        Iterator<Map.Entry<String, JobConfigEntry>> it = configMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, JobConfigEntry> entry = it.next();
+            if (JiraUtils.isSameOrNestedName(entry.getKey(), oldFullName)) {
+                moved.put(newFullName + entry.getKey().substring(oldFullName.length()), entry.getValue());
+                it.remove();
+            }
+        }
+        configMap.putAll(moved);
+
+        for (Map.Entry<String, JobConfigEntry> entry : moved.entrySet()) {
+            AbstractProject project = Jenkins.getInstance().getItemByFullName(entry.getKey(), AbstractProject.class);
+            if (project != null) {
+                save(project, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Getter for the Jira project keys and issue types used by the loaded job configurations
+     * @return map from project key to issue type ids
+     */
+    public Map<String, Set<Long>> getProjectKeysAndIssueTypes() {
+        Map<String, Set<Long>> result = new HashMap<>();
+        for (JobConfigEntry entry : configMap.values()) {
+            if (entry.getProjectKey() == null || entry.getIssueType() == null) {
+                continue;
+            }
+            Set<Long> issueTypes = result.get(entry.getProjectKey());
+            if (issueTypes == null) {
+                issueTypes = new HashSet<>();
+                result.put(entry.getProjectKey(), issueTypes);
+            }
+            issueTypes.add(entry.getIssueType());
+        }
+        return result;
+    }
+
     private JobConfigEntry getJobConfigEntry(AbstractProject project) {
         if(!configMap.containsKey(project.getFullName())) {
             JobConfigEntry entry = load(project);
@@ -314,6 +405,26 @@ public class JobConfigMapping {
         return entry != null ? entry.getmaxNoofBugs() : null;
     }
 
+    public String getStaleLinkDays(AbstractProject project) {
+        JobConfigEntry entry = getJobConfigEntry(project);
+        return entry != null ? entry.getStaleLinkDays() : null;
+    }
+
+    public String getStaleLinkBuilds(AbstractProject project) {
+        JobConfigEntry entry = getJobConfigEntry(project);
+        return entry != null ? entry.getStaleLinkBuilds() : null;
+    }
+
+    /**
+     * Getter for the compiled issue template of the last configuration
+     * @param project
+     * @return
+     */
+    public IssueTemplate getIssueTemplate(AbstractProject project) {
+        JobConfigEntry entry = getJobConfigEntry(project);
+        return entry != null ? entry.getIssueTemplate() : null;
+    }
+
     /**
      * Getter for the issue key pattern, used to validate user input
      * @param project
@@ -0,0 +1,54 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+/**
+ * Keeps the test to issue maps and the job configurations in sync with the jobs. Entries of deleted jobs are
+ * evicted, entries of renamed or moved jobs are re-keyed, so that the links are not lost (and the issues
+ * are not created again).
+ */
+@Extension
+public class JobItemListener extends ItemListener {
+
+    /**
+     * Called after an item was deleted. The item can also be a folder, in which case the entries of all the jobs
+     * inside it are evicted.
+     * @param item
+     */
+    @Override
+    public void onDeleted(Item item) {
+        TestToIssueMapping.getInstance().unregister(item.getFullName());
+        JobConfigMapping.getInstance().removeConfig(item.getFullName());
+        JiraMetrics.removeJob(item.getFullName());
+    }
+
+    /**
+     * Called after an item was renamed, or moved to another folder
+     * @param item
+     * @param oldFullName
+     * @param newFullName
+     */
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        TestToIssueMapping.getInstance().rename(oldFullName, newFullName);
+        JobConfigMapping.getInstance().renameConfig(oldFullName, newFullName);
+        JiraMetrics.removeJob(oldFullName);
+    }
+}
@@ -16,92 +16,507 @@
 package org.jenkinsci.plugins.JiraTestResultReporter;
 
 import com.atlassian.jira.rest.client.api.GetCreateIssueMetadataOptions;
+import com.atlassian.jira.rest.client.api.IdentifiableEntity;
 import com.atlassian.jira.rest.client.api.IssueRestClient;
+import com.atlassian.jira.rest.client.api.NamedEntity;
 import com.atlassian.jira.rest.client.api.domain.CimFieldInfo;
 import com.atlassian.jira.rest.client.api.domain.CimIssueType;
 import com.atlassian.jira.rest.client.api.domain.CimProject;
+import com.atlassian.jira.rest.client.api.domain.CustomFieldOption;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import hudson.Util;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by tuicu.
  * Cache for requests made about metadata required for configuring fields in the job configuration page (config.jelly)
+ * The entries are keyed by project key and issue type, the metadata of all the issue types of a project is fetched
+ * with one request. They expire after a TTL, after which the stale entry is still served while it is refreshed in
+ * the background. Failed requests are cached for a shorter time, and the least recently used entries are evicted
+ * when the cache is full. Concurrent requests for the same entry wait for a single
+ * fetch, no lock is held on the cache while fetching. The entries are also persisted in JENKINS_HOME, so they are
+ * available after a restart. Entries loaded from disk are served once and revalidated in the background.
  */
 public class MetadataCache {
-    HashMap<String, HashMap<String, CacheEntry>> fieldConfigCache = new HashMap<String, HashMap<String, CacheEntry>>();
-    public static class CacheEntry {
-        private Map<String, CimFieldInfo> fieldInfoMap;
-        private ListBoxModel stringFieldBox;
-        private ListBoxModel selectableFieldBox;
-        private ListBoxModel stringArrayFieldBox;
-        private ListBoxModel selectableArrayFieldBox;
-        private ListBoxModel userFieldBox;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(
+            Long.getLong(MetadataCache.class.getName() + ".ttlMinutes", 60));
+    private static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(
+            Long.getLong(MetadataCache.class.getName() + ".negativeTtlMinutes", 1));
+    private static final int MAX_ENTRIES = Integer.getInteger(MetadataCache.class.getName() + ".maxEntries", 200);
+
+    /**
+     * Maximum number of allowed values listed in a select control, the others are found with the search
+     */
+    public static final int MAX_LISTED_VALUES = 500;
+    public static final int SEARCH_PAGE_SIZE = 50;
+    private static final int DISK_FORMAT_VERSION = 2;
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+    private static final ConcurrentMap<Class<?>, MethodHandle> ID_GETTERS = new ConcurrentHashMap<Class<?>, MethodHandle>();
+    private static final MethodHandle NO_ID_GETTER = MethodHandles.constant(Object.class, null);
+    private static final String CACHE_DIR = "JiraTestResultReporter";
+    private static final String METADATA_DIR = "metadata";
+    private static final Gson GSON = new Gson();
+
+    private final ConcurrentMap<String, Holder> fieldConfigCache = new ConcurrentHashMap<String, Holder>();
+    private final ConcurrentMap<String, FutureTask<Map<String, CacheEntry>>> projectFetches =
+            new ConcurrentHashMap<String, FutureTask<Map<String, CacheEntry>>>();
+
+    /**
+     * The metadata of a field needed by the job configuration page, persisted with the cache entries. The allowed
+     * values are kept as two parallel arrays of ids and names, and the strings are interned, since the same values
+     * show up in the entries of all the issue types of a project.
+     */
+    public static final class FieldMetadata {
+        private final String key;
+        private final String name;
+        private final String type;
+        private final String[] allowedIds;
+        private final String[] allowedNames;
 
         /**
          * Constructor
-         * @param metadata from the request
+         * @param key
+         * @param name
+         * @param type the schema type
+         * @param allowedIds null if the field accepts any value
+         * @param allowedNames null if the field accepts any value, same length as allowedIds otherwise
          */
-        public CacheEntry(Iterable<CimProject> metadata) {
-            stringFieldBox = new ListBoxModel();
-            selectableFieldBox = new ListBoxModel();
-            stringArrayFieldBox = new ListBoxModel();
-            selectableFieldBox = new ListBoxModel();
-            selectableArrayFieldBox = new ListBoxModel();
-            userFieldBox = new ListBoxModel();
-
-            for(CimProject project : metadata) {
-                for(CimIssueType cimIssueType : project.getIssueTypes()) {
-                    fieldInfoMap = cimIssueType.getFields();
-                    Set<Map.Entry<String, CimFieldInfo>> entrySet = fieldInfoMap.entrySet();
-                    for(Map.Entry<String, CimFieldInfo> entry : entrySet) {
-                        //listInfo(entry);
-                        if(entry.getValue().getSchema().getType().equals("string") && entry.getValue().getAllowedValues() == null) {
-                            stringFieldBox.add(new ListBoxModel.Option(entry.getValue().getName(), entry.getKey(), false));
-                        }
-                        else if(!entry.getValue().getSchema().getType().equals("array") && entry.getValue().getAllowedValues() != null) {
-                            selectableFieldBox.add(new ListBoxModel.Option(entry.getValue().getName(), entry.getKey(), false));
-                        }
-                        else if(entry.getValue().getSchema().getType().equals("array") && entry.getValue().getAllowedValues() == null) {
-                            stringArrayFieldBox.add(new ListBoxModel.Option(entry.getValue().getName(), entry.getKey(), false));
-                        }
-                        else if(entry.getValue().getSchema().getType().equals("array") && entry.getValue().getAllowedValues() != null) {
-                            selectableArrayFieldBox.add(new ListBoxModel.Option(entry.getValue().getName(), entry.getKey(), false));
-                        }
-                        else if(entry.getValue().getSchema().getType().equals("user")) {
-                            userFieldBox.add(new ListBoxModel.Option(entry.getValue().getName(), entry.getKey(), false));
+        public FieldMetadata(String key, String name, String type, String[] allowedIds, String[] allowedNames) {
+            this.key = intern(key);
+            this.name = intern(name);
+            this.type = intern(type);
+            if (allowedIds == null) {
+                this.allowedIds = null;
+                this.allowedNames = null;
+                return;
+            }
+
+            //sort by name, for the prefix search
+            Integer[] order = new Integer[allowedIds.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            final String[] names = allowedNames;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(Util.fixNull(names[a]), Util.fixNull(names[b]));
+                }
+            });
+            this.allowedIds = new String[order.length];
+            this.allowedNames = new String[order.length];
+            for (int i = 0; i < order.length; i++) {
+                this.allowedIds[i] = intern(allowedIds[order[i]]);
+                this.allowedNames[i] = intern(Util.fixNull(allowedNames[order[i]]));
+            }
+        }
+
+        public String getKey() { return key; }
+
+        public String getName() { return name; }
+
+        public String getType() { return type; }
+
+        public boolean hasAllowedValues() { return allowedIds != null; }
+
+        public int getAllowedValueCount() { return allowedIds != null ? allowedIds.length : 0; }
+
+        public String getAllowedId(int index) { return allowedIds[index]; }
+
+        public String getAllowedName(int index) { return allowedNames[index]; }
+
+        /**
+         * Getter for the position of an allowed value
+         * @param id
+         * @return the index, or -1 if the id is not allowed
+         */
+        public int indexOfAllowedId(String id) {
+            for (int i = 0; allowedIds != null && i < allowedIds.length; i++) {
+                if (allowedIds[i].equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Getter for the range of allowed values with the name starting with a prefix (case insensitive). The values
+         * are sorted by name, so the range is found with two binary searches.
+         * @param prefix
+         * @return the first index and the index after the last one
+         */
+        public int[] findAllowedNames(String prefix) {
+            if (allowedNames == null) {
+                return new int[] {0, 0};
+            }
+            String from = Util.fixNull(prefix);
+            return new int[] {lowerBound(from), lowerBound(from + Character.MAX_VALUE)};
+        }
+
+        private int lowerBound(String value) {
+            int low = 0;
+            int high = allowedNames.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (String.CASE_INSENSITIVE_ORDER.compare(allowedNames[mid], value) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Kind of field, decides which field configurations can use it
+     */
+    private enum FieldKind {
+        STRING, SELECTABLE, STRING_ARRAY, SELECTABLE_ARRAY, USER, OTHER;
+
+        static FieldKind of(FieldMetadata field) {
+            if(field.getType().equals("string") && !field.hasAllowedValues()) {
+                return STRING;
+            }
+            else if(!field.getType().equals("array") && field.hasAllowedValues()) {
+                return SELECTABLE;
+            }
+            else if(field.getType().equals("array") && !field.hasAllowedValues()) {
+                return STRING_ARRAY;
+            }
+            else if(field.getType().equals("array") && field.hasAllowedValues()) {
+                return SELECTABLE_ARRAY;
+            }
+            else if(field.getType().equals("user")) {
+                return USER;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Immutable cache entry, the list boxes are built on demand from the metadata of the fields
+     */
+    public static final class CacheEntry {
+        private final FieldMetadata[] fields;
+
+        /**
+         * Constructor
+         * @param cimIssueType the metadata of the issue type, from the request
+         */
+        public CacheEntry(CimIssueType cimIssueType) {
+            this(toFieldMetadata(cimIssueType));
+        }
+
+        /**
+         * Constructor
+         * @param fields the metadata of the fields
+         */
+        public CacheEntry(List<FieldMetadata> fields) {
+            this.fields = fields.toArray(new FieldMetadata[fields.size()]);
+        }
+
+        public ListBoxModel getStringFieldBox() { return getFieldBox(FieldKind.STRING); }
+
+        public ListBoxModel getSelectableFieldBox() { return getFieldBox(FieldKind.SELECTABLE); }
+
+        public ListBoxModel getStringArrayFieldBox() { return getFieldBox(FieldKind.STRING_ARRAY); }
+
+        public ListBoxModel getSelectableArrayFieldBox() { return getFieldBox(FieldKind.SELECTABLE_ARRAY); }
+
+        public ListBoxModel getUserFieldBox() { return getFieldBox(FieldKind.USER); }
+
+        public List<FieldMetadata> getFields() { return Collections.unmodifiableList(Arrays.asList(fields)); }
+
+        /**
+         * Getter for the metadata of a field
+         * @param fieldKey
+         * @return the metadata, or null if the field is unknown
+         */
+        public FieldMetadata getField(String fieldKey) {
+            for(FieldMetadata field : fields) {
+                if(field.getKey().equals(fieldKey)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Getter for the allowed values of a field
+         * @param fieldKey
+         * @return the allowed values, empty if the field is unknown or accepts any value
+         */
+        public ListBoxModel getAllowedValuesBox(String fieldKey) {
+            return getAllowedValuesBox(fieldKey, null, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Getter for the first allowed values of a field, sorted by name. The selected value is always included,
+         * so that it is not lost when the list is truncated.
+         * @param fieldKey
+         * @param selectedId the id of the selected value, can be null
+         * @param max the maximum number of values, besides the selected one
+         * @return the allowed values, empty if the field is unknown or accepts any value
+         */
+        public ListBoxModel getAllowedValuesBox(String fieldKey, String selectedId, int max) {
+            FieldMetadata field = getField(fieldKey);
+            if(field == null) {
+                return new ListBoxModel();
+            }
+            int count = Math.min(field.getAllowedValueCount(), max);
+            ListBoxModel listBox = new ListBoxModel(count + 1);
+            for(int i = 0; i < count; i++) {
+                listBox.add(new ListBoxModel.Option(field.getAllowedName(i), field.getAllowedId(i),
+                        field.getAllowedId(i).equals(selectedId)));
+            }
+            int selected = selectedId != null ? field.indexOfAllowedId(selectedId) : -1;
+            if(selected >= count) {
+                listBox.add(new ListBoxModel.Option(field.getAllowedName(selected), selectedId, true));
+            }
+            return listBox;
+        }
+
+        /**
+         * Searches the allowed values of a field with the name starting with a prefix (case insensitive)
+         * @param fieldKey
+         * @param prefix
+         * @param offset the index of the first match to return
+         * @param limit the maximum number of matches to return
+         * @return {"values": [{"name": ..., "value": ...}], "total": number of matches}
+         */
+        public JSONObject searchAllowedValues(String fieldKey, String prefix, int offset, int limit) {
+            JSONArray values = new JSONArray();
+            int total = 0;
+            FieldMetadata field = getField(fieldKey);
+            if(field != null) {
+                int[] range = field.findAllowedNames(prefix);
+                total = range[1] - range[0];
+                int end = Math.min(range[1], range[0] + Math.max(offset, 0) + limit);
+                for(int i = range[0] + Math.max(offset, 0); i < end; i++) {
+                    JSONObject value = new JSONObject();
+                    value.put("name", field.getAllowedName(i));
+                    value.put("value", field.getAllowedId(i));
+                    values.add(value);
+                }
+            }
+            JSONObject result = new JSONObject();
+            result.put("values", values);
+            result.put("total", total);
+            return result;
+        }
+
+        private ListBoxModel getFieldBox(FieldKind kind) {
+            ListBoxModel listBox = new ListBoxModel();
+            for(FieldMetadata field : fields) {
+                if(FieldKind.of(field) == kind) {
+                    listBox.add(new ListBoxModel.Option(field.getName(), field.getKey(), false));
+                }
+            }
+            return listBox;
+        }
+
+        private static List<FieldMetadata> toFieldMetadata(CimIssueType cimIssueType) {
+            List<FieldMetadata> fields = new ArrayList<FieldMetadata>();
+            for(Map.Entry<String, CimFieldInfo> entry : cimIssueType.getFields().entrySet()) {
+                fields.add(toFieldMetadata(entry.getKey(), entry.getValue()));
+            }
+            return fields;
+        }
+
+        private static FieldMetadata toFieldMetadata(String key, CimFieldInfo info) {
+            Iterable<Object> values = info.getAllowedValues();
+            if(values == null) {
+                return new FieldMetadata(key, info.getName(), info.getSchema().getType(), null, null);
+            }
+            List<String> ids = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            for (Object o : values) {
+                if(o instanceof CustomFieldOption) {
+                    CustomFieldOption option = (CustomFieldOption) o;
+                    ids.add(option.getId().toString());
+                    names.add(option.getValue());
+                } else if (o instanceof IdentifiableEntity && o instanceof NamedEntity) {
+                    ids.add(((IdentifiableEntity) o).getId().toString());
+                    names.add(((NamedEntity) o).getName());
+                //work-around for Components and Fix Versions
+                // even though they have ids, for some reason they don't implement IdentifiableEntity
+                // so I'm invoking the getter for the id using reflection
+                } else if (o instanceof  NamedEntity) {
+                    try {
+                        Object id = getId(o);
+                        if(id != null) {
+                            ids.add(id.toString());
+                            names.add(((NamedEntity) o).getName());
                         }
+                    } catch (Exception e) {
                     }
-                    break; //the request is made for just one issue type
                 }
-                break; //the request is made for just one project
             }
+            return new FieldMetadata(key, info.getName(), info.getSchema().getType(),
+                    ids.toArray(new String[ids.size()]), names.toArray(new String[names.size()]));
         }
+    }
 
-        public ListBoxModel getStringFieldBox() { return stringFieldBox; }
+    /**
+     * Invokes getId on an object, through a method handle cached for its class
+     * @param o
+     * @return the id, or null if the class has no public getId method
+     * @throws Exception thrown by getId, errors are rethrown as they are
+     */
+    private static Object getId(Object o) throws Exception {
+        MethodHandle getter = ID_GETTERS.get(o.getClass());
+        if (getter == null) {
+            try {
+                getter = MethodHandles.publicLookup().unreflect(o.getClass().getMethod("getId"))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                getter = NO_ID_GETTER;
+            }
+            ID_GETTERS.putIfAbsent(o.getClass(), getter);
+        }
+        if (getter == NO_ID_GETTER) {
+            return null;
+        }
+        try {
+            return (Object) getter.invokeExact(o);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
 
-        public ListBoxModel getSelectableFieldBox() { return selectableFieldBox; }
+    private static String intern(String value) {
+        return value != null ? INTERNER.intern(value) : null;
+    }
 
-        public ListBoxModel getStringArrayFieldBox() { return stringArrayFieldBox; }
+    /**
+     * Format of the cache entries persisted on disk
+     */
+    private static class PersistedEntry {
+        private int version;
+        private String jiraUrl;
+        private long fetchedAt;
+        private List<FieldMetadata> fields;
+    }
 
-        public ListBoxModel getSelectableArrayFieldBox() { return selectableArrayFieldBox; }
+    /**
+     * Holder for a cache entry, while it is fetched and afterwards. A null value means the request failed.
+     */
+    private final class Holder {
+        private final String projectKey;
+        private final String issueType;
+        private final FutureTask<CacheEntry> task;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long expiresAt;
+        private volatile long lastAccess = System.currentTimeMillis();
 
-        public ListBoxModel getUserFieldBox() { return userFieldBox; }
+        /**
+         * Constructor
+         * @param projectKey
+         * @param issueType
+         * @param fromDisk if the entry persisted on disk can be used, it will be revalidated on first access
+         */
+        Holder(String projectKey, String issueType, final boolean fromDisk) {
+            this.projectKey = projectKey;
+            this.issueType = issueType;
+            this.task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                @Override
+                public CacheEntry call() {
+                    String projectKey = Holder.this.projectKey;
+                    String issueType = Holder.this.issueType;
+                    CacheEntry entry = fromDisk ? load(projectKey, issueType) : null;
+                    if (entry != null) {
+                        expiresAt = 0;
+                        return entry;
+                    }
+                    Map<String, CacheEntry> entries = fetchProject(projectKey);
+                    entry = entries != null ? entries.get(issueType) : null;
+                    if (entries != null) {
+                        publish(projectKey, issueType, entries);
+                    }
+                    expiresAt = System.currentTimeMillis() + (entry != null ? TTL : NEGATIVE_TTL);
+                    return entry;
+                }
+            });
+        }
 
-        public Map<String, CimFieldInfo> getFieldInfoMap() { return fieldInfoMap; }
+        /**
+         * Constructor for an entry that was already fetched
+         * @param projectKey
+         * @param issueType
+         * @param entry
+         */
+        Holder(String projectKey, String issueType, final CacheEntry entry) {
+            this.projectKey = projectKey;
+            this.issueType = issueType;
+            this.task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                @Override
+                public CacheEntry call() {
+                    return entry;
+                }
+            });
+            this.expiresAt = System.currentTimeMillis() + TTL;
+            this.task.run();
+        }
 
-        private void listInfo(Map.Entry<String, CimFieldInfo> entry) {
-            System.out.println(entry.getValue().getName() + " :: " + entry.getValue().getSchema().getType());
-            if(entry.getValue().getAllowedValues() != null) {
-                for(Object o : entry.getValue().getAllowedValues()) {
-                    System.out.println("\t" + o);
-                }}
+        boolean isExpired() {
+            return task.isDone() && System.currentTimeMillis() >= expiresAt;
+        }
+
+        CacheEntry await() {
+            lastAccess = System.currentTimeMillis();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                JiraUtils.logError("ERROR: Unknown error", e.getCause());
+                return null;
+            }
         }
     }
 
+    private static String key(String projectKey, String issueType) {
+        return projectKey + ":" + issueType;
+    }
 
     /**
      * Method for removing the cache entry
@@ -109,71 +524,307 @@ public class MetadataCache {
      * @param issueType
      */
     public void removeCacheEntry(String projectKey, String issueType) {
-        if(fieldConfigCache.containsKey(projectKey) && fieldConfigCache.get(projectKey).containsKey(issueType)) {
-            synchronized (fieldConfigCache.get(projectKey)) {
-                fieldConfigCache.get(projectKey).remove(issueType);
+        fieldConfigCache.remove(key(projectKey, issueType));
+        getFile(projectKey, issueType).delete();
+    }
+
+    /**
+     * Getter for the number of entries, including the ones being loaded
+     * @return
+     */
+    int size() {
+        return fieldConfigCache.size();
+    }
+
+    /**
+     * Getter for the number of createmeta requests waiting for Jira
+     * @return
+     */
+    int getFetchesInFlight() {
+        return projectFetches.size();
+    }
+
+    /**
+     * Method for removing all the cache entries, for example when the Jira server changes
+     */
+    public void clear() {
+        fieldConfigCache.clear();
+        File[] files = getCacheDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
             }
         }
     }
 
     /**
      * Getter for a cache entry, it will first look in the map too see if there is an entry associated with the
-     * arguments, if not it will make the request for the metadata, create the entry, store it in the map and return it
+     * arguments, if not it will make the request for the metadata, create the entry, store it in the map and return it.
+     * Entries persisted on disk are used until the cache is warm. Expired entries are returned and refreshed in the
+     * background.
      * @param projectKey
      * @param issueType
-     * @return
+     * @return the entry, or null if the metadata could not be fetched
      */
     public CacheEntry getCacheEntry(String projectKey, String issueType) {
-        CacheEntry cacheEntry;
-        try{
-            cacheEntry = fieldConfigCache.get(projectKey).get(issueType);
-            if(cacheEntry == null) {
-                fieldConfigCache.get(projectKey).remove(issueType);
-            } else {
-                return cacheEntry;
+        if (projectKey == null || projectKey.isEmpty() || issueType == null || issueType.isEmpty()) {
+            return null;
+        }
+        String key = key(projectKey, issueType);
+        Holder cached = fieldConfigCache.get(key);
+        Holder holder = getHolder(key, projectKey, issueType);
+        CacheEntry entry = holder.await();
+        boolean stale = entry != null && holder.isExpired();
+        if (stale) {
+            refreshAsync(key, holder);
+        }
+        JiraMetrics.recordCacheLookup(JiraMetrics.METADATA_CACHE, holder != cached ? "miss" : stale ? "stale" : "hit");
+        return entry;
+    }
+
+    /**
+     * Fetches the entry if it is missing or expired, without waiting for a page to request it. Unlike
+     * {@link #getCacheEntry(String, String)}, expired entries are refreshed in the calling thread.
+     * @param projectKey
+     * @param issueType
+     */
+    public void prefetch(String projectKey, String issueType) {
+        String key = key(projectKey, issueType);
+        Holder holder = getHolder(key, projectKey, issueType);
+        if (holder.isExpired() && holder.await() != null && holder.refreshing.compareAndSet(false, true)) {
+            refresh(key, holder);
+        }
+    }
+
+    /**
+     * Getter for the holder of an entry, loading it if it is missing or the last request failed
+     * @param key
+     * @param projectKey
+     * @param issueType
+     * @return
+     */
+    private Holder getHolder(String key, String projectKey, String issueType) {
+        Holder holder = fieldConfigCache.get(key);
+        if (holder != null && holder.isExpired() && holder.await() == null) {
+            //failed request, retry now
+            fieldConfigCache.remove(key, holder);
+            holder = null;
+        }
+
+        if (holder == null) {
+            Holder created = new Holder(projectKey, issueType, true);
+            holder = fieldConfigCache.putIfAbsent(key, created);
+            if (holder == null) {
+                holder = created;
+                holder.task.run();
+                evictIfFull();
             }
-        }catch (NullPointerException e) {
-            //Absent project key or issue type
         }
+        return holder;
+    }
 
-        if(!fieldConfigCache.containsKey(projectKey)) {
-            synchronized (fieldConfigCache) {
-                if(!fieldConfigCache.containsKey(projectKey))
-                fieldConfigCache.put(projectKey, new HashMap<String, CacheEntry>());
+    /**
+     * Fetches the entry again in the background, the stale entry is replaced only if the request succeeds
+     * @param key
+     * @param stale
+     */
+    private void refreshAsync(final String key, final Holder stale) {
+        if (!stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                refresh(key, stale);
             }
+        });
+    }
+
+    /**
+     * Fetches the entry again, the stale entry is replaced only if the request succeeds
+     * @param key
+     * @param stale
+     */
+    private void refresh(String key, Holder stale) {
+        Holder fresh = new Holder(stale.projectKey, stale.issueType, false);
+        fresh.task.run();
+        if (fresh.await() != null) {
+            fieldConfigCache.replace(key, stale, fresh);
+        } else {
+            //keep serving the stale entry, try again later
+            stale.expiresAt = System.currentTimeMillis() + NEGATIVE_TTL;
+            stale.refreshing.set(false);
         }
+    }
 
+    /**
+     * Removes the least recently used entries while the cache has more than the maximum number of entries
+     */
+    private void evictIfFull() {
+        while (fieldConfigCache.size() > MAX_ENTRIES) {
+            Map.Entry<String, Holder> eldest = null;
+            for (Map.Entry<String, Holder> entry : fieldConfigCache.entrySet()) {
+                if (eldest == null || entry.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            fieldConfigCache.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
 
-        HashMap<String, CacheEntry> issueTypeToFields = fieldConfigCache.get(projectKey);
-        cacheEntry = issueTypeToFields.get(issueType);
-        if(cacheEntry == null) {
-            synchronized (issueTypeToFields) {
-                if(!issueTypeToFields.containsKey(issueType)) {
-                    IssueRestClient issueRestClient = JiraUtils.getJiraDescriptor().getRestClient().getIssueClient();
-                    Iterable<CimProject> metadata;
-                    try {
-                        metadata = issueRestClient.getCreateIssueMetadata(
-                                new GetCreateIssueMetadataOptions(
-                                        Collections.singletonList(GetCreateIssueMetadataOptions.EXPAND_PROJECTS_ISSUETYPES_FIELDS),
-                                        null,
-                                        Collections.singletonList(Long.parseLong(issueType)),
-                                        Collections.singletonList(projectKey), null)
-                        ).claim();
-                    }
-                    catch (Exception e) {
-                        JiraUtils.logError("ERROR: Unknown error", e);
-                        return null;
+    /**
+     * Saves the entries of all the issue types of a project, fetched together with the one that was requested.
+     * Entries that are still fresh or being fetched are kept.
+     * @param projectKey
+     * @param requestedIssueType the issue type that was requested, its holder is already in the cache
+     * @param entries issue type to entry
+     */
+    private void publish(String projectKey, String requestedIssueType, Map<String, CacheEntry> entries) {
+        for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+            save(projectKey, entry.getKey(), entry.getValue());
+            if (entry.getKey().equals(requestedIssueType)) {
+                continue;
+            }
+            String key = key(projectKey, entry.getKey());
+            Holder fresh = new Holder(projectKey, entry.getKey(), entry.getValue());
+            Holder existing = fieldConfigCache.putIfAbsent(key, fresh);
+            if (existing != null && existing.isExpired()) {
+                fieldConfigCache.replace(key, existing, fresh);
+            }
+        }
+        evictIfFull();
+    }
+
+    /**
+     * Makes the request for the metadata of all the issue types of a project. Concurrent requests for the same
+     * project share the same call.
+     * @param projectKey
+     * @return issue type to entry, or null if the request failed
+     */
+    private Map<String, CacheEntry> fetchProject(final String projectKey) {
+        FutureTask<Map<String, CacheEntry>> task = new FutureTask<Map<String, CacheEntry>>(
+                new Callable<Map<String, CacheEntry>>() {
+                    @Override
+                    public Map<String, CacheEntry> call() {
+                        return fetch(projectKey);
                     }
+                });
+        FutureTask<Map<String, CacheEntry>> inFlight = projectFetches.putIfAbsent(projectKey, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                projectFetches.remove(projectKey, task);
+            }
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            JiraUtils.logError("ERROR: Unknown error", e.getCause());
+            return null;
+        }
+    }
 
-                    cacheEntry = new CacheEntry(metadata);
-                    issueTypeToFields.put(issueType, cacheEntry);
-                    return cacheEntry;
-                }
+    /**
+     * Makes the request for the metadata of all the issue types of a project, with a single createmeta call
+     * @param projectKey
+     * @return issue type to entry, or null if the request failed
+     */
+    private static Map<String, CacheEntry> fetch(String projectKey) {
+        Iterable<CimProject> metadata;
+        try {
+            IssueRestClient issueRestClient = JiraUtils.getJiraDescriptor().getRestClient().getIssueClient();
+            metadata = JiraMetrics.claim(JiraMetrics.CREATEMETA, issueRestClient.getCreateIssueMetadata(
+                    new GetCreateIssueMetadataOptions(
+                            Collections.singletonList(GetCreateIssueMetadataOptions.EXPAND_PROJECTS_ISSUETYPES_FIELDS),
+                            null,
+                            null,
+                            Collections.singletonList(projectKey), null)
+            ));
+        }
+        catch (Exception e) {
+            JiraUtils.logError("ERROR: Unknown error", e);
+            return null;
+        }
+
+        Map<String, CacheEntry> entries = new HashMap<String, CacheEntry>();
+        for (CimProject project : metadata) {
+            for (CimIssueType cimIssueType : project.getIssueTypes()) {
+                entries.put(cimIssueType.getId().toString(), new CacheEntry(cimIssueType));
+            }
+            break; //the request is made for just one project
+        }
+        return entries;
+    }
+
+    private static File getCacheDir() {
+        return new File(new File(Jenkins.getInstance().getRootDir(), CACHE_DIR), METADATA_DIR);
+    }
+
+    private static File getFile(String projectKey, String issueType) {
+        return new File(getCacheDir(), (projectKey + "_" + issueType).replaceAll("[^\\w-]", "_") + ".json");
+    }
+
+    /**
+     * Loads an entry persisted on disk, if it was saved in the current format for the current Jira server
+     * @param projectKey
+     * @param issueType
+     * @return the entry, or null if there is no usable entry on disk
+     */
+    private static CacheEntry load(String projectKey, String issueType) {
+        File file = getFile(projectKey, issueType);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream fileIn = new FileInputStream(file);
+                JsonReader reader = new JsonReader(new InputStreamReader(fileIn, "UTF-8")))
+        {
+            PersistedEntry persisted = GSON.fromJson(reader, PersistedEntry.class);
+            if (persisted == null || persisted.version != DISK_FORMAT_VERSION || persisted.fields == null
+                    || persisted.jiraUrl == null || !persisted.jiraUrl.equals(JiraUtils.getJiraDescriptor().getJiraUrl())) {
+                return null;
+            }
+            //deserialized without the constructor, intern the strings now
+            List<FieldMetadata> fields = new ArrayList<FieldMetadata>(persisted.fields.size());
+            for (FieldMetadata f : persisted.fields) {
+                fields.add(new FieldMetadata(f.key, f.name, f.type, f.allowedIds, f.allowedNames));
             }
-            cacheEntry = issueTypeToFields.get(issueType);
+            return new CacheEntry(fields);
+        } catch (JsonIOException | JsonSyntaxException | IOException e) {
+            JiraUtils.logWarning("Could not load the metadata cached for " + projectKey + " " + issueType, e);
+            return null;
         }
+    }
 
-        return cacheEntry;
+    /**
+     * Persists an entry on disk
+     * @param projectKey
+     * @param issueType
+     * @param entry
+     */
+    private static void save(String projectKey, String issueType, CacheEntry entry) {
+        PersistedEntry persisted = new PersistedEntry();
+        persisted.version = DISK_FORMAT_VERSION;
+        persisted.jiraUrl = JiraUtils.getJiraDescriptor().getJiraUrl();
+        persisted.fetchedAt = System.currentTimeMillis();
+        persisted.fields = entry.getFields();
+
+        File file = getFile(projectKey, issueType);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(fileOut, "UTF-8")))
+        {
+            GSON.toJson(persisted, PersistedEntry.class, writer);
+        } catch (Exception e) {
+            JiraUtils.logError("ERROR: Could not save the metadata cached for " + projectKey + " " + issueType, e);
+        }
     }
 
     /**
@@ -0,0 +1,104 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodic task that prefetches the metadata for all the project keys and issue types used in job configurations,
+ * and the statuses map, so that nobody has to wait for them when opening a job configuration page. Runs shortly
+ * after startup and then before the cache entries expire.
+ */
+@Extension
+public class MetadataWarmup extends AsyncPeriodicWork {
+    private static final int PARALLELISM = Integer.getInteger(MetadataWarmup.class.getName() + ".parallelism", 4);
+    /**
+     * Projects submitted to the warm-up pool and not finished yet
+     */
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+
+    public MetadataWarmup() {
+        super("JiraTestResultReporter metadata warm-up");
+    }
+
+    /**
+     * Getter for the number of projects waiting to be prefetched or being prefetched
+     * @return
+     */
+    static int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(30);
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final JiraTestDataPublisher.JiraTestDataPublisherDescriptor descriptor = JiraUtils.getJiraDescriptor();
+        if (descriptor == null || descriptor.getRestClient() == null) {
+            return;
+        }
+        descriptor.tryCreatingStatusToCategoryMap();
+
+        ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM,
+                new NamingThreadFactory(new DaemonThreadFactory(), "JiraTestResultReporter metadata warm-up"));
+        try {
+            for (final Map.Entry<String, Set<Long>> entry
+                    : JobConfigMapping.getInstance().getProjectKeysAndIssueTypes().entrySet()) {
+                //the first issue type fetches the metadata of the whole project, the others are already cached
+                queueDepth.incrementAndGet();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (Long issueType : entry.getValue()) {
+                                descriptor.getMetadataCache().prefetch(entry.getKey(), issueType.toString());
+                            }
+                        } finally {
+                            queueDepth.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!executor.awaitTermination(getRecurrencePeriod(), TimeUnit.MILLISECONDS)) {
+            listener.getLogger().println("Metadata warm-up did not finish in time");
+            //tasks that never started won't decrement the queue depth
+            queueDepth.addAndGet(-executor.shutdownNow().size());
+        }
+    }
+}
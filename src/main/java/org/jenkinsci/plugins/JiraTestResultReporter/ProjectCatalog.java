@@ -0,0 +1,203 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.GetCreateIssueMetadataOptions;
+import com.atlassian.jira.rest.client.api.domain.BasicProject;
+import com.atlassian.jira.rest.client.api.domain.CimIssueType;
+import com.atlassian.jira.rest.client.api.domain.CimProject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for the Jira projects, used by the validation and fill methods of the job configuration page. The project
+ * names and issue types are fetched with a createmeta request without the fields, which is much lighter than getting
+ * the whole project (with versions, components, etc.). The list of all the projects is cached for autocompletion.
+ */
+public class ProjectCatalog {
+    private static final long TTL = TimeUnit.MINUTES.toMillis(
+            Long.getLong(ProjectCatalog.class.getName() + ".ttlMinutes", 15));
+    private static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_PROJECTS = 500;
+
+    /**
+     * A project and its issue types
+     */
+    public static final class ProjectInfo {
+        private final String key;
+        private final String name;
+        private final String[] issueTypeIds;
+        private final String[] issueTypeNames;
+        private final long expiresAt;
+
+        ProjectInfo(String key, String name, String[] issueTypeIds, String[] issueTypeNames, long ttl) {
+            this.key = key;
+            this.name = name;
+            this.issueTypeIds = issueTypeIds;
+            this.issueTypeNames = issueTypeNames;
+            this.expiresAt = System.currentTimeMillis() + ttl;
+        }
+
+        public String getKey() { return key; }
+
+        public String getName() { return name; }
+
+        public int getIssueTypeCount() { return issueTypeIds.length; }
+
+        public String getIssueTypeId(int index) { return issueTypeIds[index]; }
+
+        public String getIssueTypeName(int index) { return issueTypeNames[index]; }
+
+        /**
+         * Checks if the project was found
+         * @return false if the project does not exist, or the request failed
+         */
+        public boolean exists() { return name != null; }
+
+        boolean isExpired() { return System.currentTimeMillis() >= expiresAt; }
+    }
+
+    /**
+     * Project key to project, the least recently used projects are evicted
+     */
+    private final Map<String, ProjectInfo> projects = Collections.synchronizedMap(
+            new LinkedHashMap<String, ProjectInfo>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ProjectInfo> eldest) {
+                    return size() > MAX_PROJECTS;
+                }
+            });
+    private volatile List<ProjectInfo> allProjects;
+    private volatile long allProjectsExpireAt;
+
+    /**
+     * Getter for a project
+     * @param projectKey
+     * @return the project, or null if it does not exist or could not be fetched
+     */
+    public ProjectInfo getProject(String projectKey) {
+        if (projectKey == null || projectKey.isEmpty()) {
+            return null;
+        }
+        ProjectInfo info = projects.get(projectKey);
+        JiraMetrics.recordCacheLookup(JiraMetrics.PROJECT_CATALOG, info != null && !info.isExpired());
+        if (info == null || info.isExpired()) {
+            info = fetch(projectKey);
+            projects.put(projectKey, info);
+        }
+        return info.exists() ? info : null;
+    }
+
+    /**
+     * Getter for the projects with the key or name starting with a prefix (case insensitive)
+     * @param prefix
+     * @param max the maximum number of projects
+     * @return
+     */
+    public List<ProjectInfo> findProjects(String prefix, int max) {
+        List<ProjectInfo> all = allProjects;
+        JiraMetrics.recordCacheLookup(JiraMetrics.PROJECT_CATALOG,
+                all != null && System.currentTimeMillis() < allProjectsExpireAt);
+        if (all == null || System.currentTimeMillis() >= allProjectsExpireAt) {
+            all = fetchAll();
+        }
+        String lowerPrefix = prefix == null ? "" : prefix.toLowerCase(Locale.ENGLISH);
+        List<ProjectInfo> result = new ArrayList<ProjectInfo>();
+        for (ProjectInfo info : all) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (startsWith(info.getKey(), lowerPrefix) || startsWith(info.getName(), lowerPrefix)) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Getter for the number of cached projects
+     * @return
+     */
+    int size() {
+        return projects.size();
+    }
+
+    /**
+     * Method for removing all the cached projects, for example when the Jira server changes
+     */
+    public void clear() {
+        projects.clear();
+        allProjects = null;
+    }
+
+    private static boolean startsWith(String value, String lowerPrefix) {
+        return value != null && value.toLowerCase(Locale.ENGLISH).startsWith(lowerPrefix);
+    }
+
+    /**
+     * Makes the request for a project and its issue types
+     * @param projectKey
+     * @return the project, it does not exist if the request failed or the project was not found
+     */
+    private static ProjectInfo fetch(String projectKey) {
+        try {
+            Iterable<CimProject> metadata = JiraMetrics.claim(JiraMetrics.CREATEMETA,
+                    JiraUtils.getJiraDescriptor().getRestClient().getIssueClient()
+                            .getCreateIssueMetadata(new GetCreateIssueMetadataOptions(
+                                    null, null, null, Collections.singletonList(projectKey), null)));
+            for (CimProject project : metadata) {
+                List<String> ids = new ArrayList<String>();
+                List<String> names = new ArrayList<String>();
+                for (CimIssueType issueType : project.getIssueTypes()) {
+                    ids.add(issueType.getId().toString());
+                    names.add(issueType.getName());
+                }
+                return new ProjectInfo(project.getKey(), project.getName(),
+                        ids.toArray(new String[ids.size()]), names.toArray(new String[names.size()]), TTL);
+            }
+        } catch (Exception e) {
+            JiraUtils.logWarning("Could not get project " + projectKey, e);
+        }
+        return new ProjectInfo(projectKey, null, new String[0], new String[0], NEGATIVE_TTL);
+    }
+
+    /**
+     * Makes the request for all the projects, without their issue types
+     * @return
+     */
+    private List<ProjectInfo> fetchAll() {
+        List<ProjectInfo> all = new ArrayList<ProjectInfo>();
+        long ttl = TTL;
+        try {
+            for (BasicProject project : JiraMetrics.claim(JiraMetrics.PROJECTS,
+                    JiraUtils.getJiraDescriptor().getRestClient().getProjectClient().getAllProjects())) {
+                all.add(new ProjectInfo(project.getKey(), project.getName(), new String[0], new String[0], TTL));
+            }
+        } catch (Exception e) {
+            JiraUtils.logWarning("Could not get the list of projects", e);
+            ttl = NEGATIVE_TTL;
+        }
+        allProjects = Collections.unmodifiableList(all);
+        allProjectsExpireAt = System.currentTimeMillis() + ttl;
+        return allProjects;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.Util;
+import hudson.tasks.test.TestResult;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Computes a stable fingerprint of a test failure, from the id of the test and its normalized stack trace. The
+ * fingerprint is added as a label to the issues created for the failure, so duplicates can be found with an exact
+ * label query instead of a full-text search.
+ */
+public class StackTraceFingerprint {
+    public static final String LABEL_PREFIX = "jtrr-";
+    static final String VARIABLE_NAME = "TEST_FINGERPRINT";
+    private static final int HASH_LENGTH = 16;
+
+    private static final Pattern TIMESTAMP = Pattern.compile(
+            "\\d{4}-\\d{2}-\\d{2}[T ]\\d{2}:\\d{2}:\\d{2}(?:[.,]\\d+)?(?:Z|[+-]\\d{2}:?\\d{2})?"
+                    + "|\\b\\d{2}:\\d{2}:\\d{2}(?:[.,]\\d+)?\\b");
+    private static final Pattern HEX_ADDRESS = Pattern.compile("0x[0-9a-fA-F]+|@[0-9a-fA-F]{4,}\\b");
+    private static final Pattern LAMBDA_CLASS = Pattern.compile("\\$\\$Lambda\\$\\d+(?:/(?:0x)?[0-9a-fA-F]+)?");
+    private static final Pattern LAMBDA_METHOD = Pattern.compile("(lambda\\$\\w*\\$)\\d+");
+    private static final Pattern GENERATED_CLASS = Pattern.compile(
+            "(GeneratedMethodAccessor|GeneratedConstructorAccessor|GeneratedSerializationConstructorAccessor|\\$Proxy)\\d+");
+    private static final Pattern LINE_NUMBER = Pattern.compile("\\(([^():]+):\\d+\\)");
+    private static final Pattern OMITTED_FRAMES = Pattern.compile("(?m)^\\s*\\.\\.\\. \\d+ (?:more|common frames omitted)\\s*$");
+    private static final Pattern REFLECTION_FRAME = Pattern.compile(
+            "(?m)^\\s*at (?:sun\\.reflect|java\\.lang\\.reflect|jdk\\.internal\\.reflect)\\..*$");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Normalizes a stack trace, removing the parts that change between runs of the same failure: timestamps, hex
+     * addresses and identity hash codes, ids of lambdas and generated classes, line numbers and reflection frames.
+     * @param stackTrace
+     * @return the normalized stack trace
+     */
+    public static String normalize(String stackTrace) {
+        String result = Util.fixNull(stackTrace);
+        result = TIMESTAMP.matcher(result).replaceAll("<ts>");
+        result = LAMBDA_CLASS.matcher(result).replaceAll("\\$\\$Lambda\\$");
+        result = LAMBDA_METHOD.matcher(result).replaceAll("$1");
+        result = GENERATED_CLASS.matcher(result).replaceAll("$1");
+        result = HEX_ADDRESS.matcher(result).replaceAll("<hex>");
+        result = LINE_NUMBER.matcher(result).replaceAll("($1)");
+        result = OMITTED_FRAMES.matcher(result).replaceAll("");
+        result = REFLECTION_FRAME.matcher(result).replaceAll("");
+        return WHITESPACE.matcher(result).replaceAll(" ").trim();
+    }
+
+    /**
+     * Computes the fingerprint label of a failed test
+     * @param test
+     * @return the label, jtrr- followed by the hash of the test id and the normalized stack trace
+     */
+    public static String compute(TestResult test) {
+        String trace = test.getErrorStackTrace();
+        if (trace == null || trace.isEmpty()) {
+            trace = test.getErrorDetails();
+        }
+        return LABEL_PREFIX + hash(test.getId() + "\n" + normalize(trace));
+    }
+
+    /**
+     * Getter for the fingerprint label of the test of the context, memoized as the TEST_FINGERPRINT variable
+     * @param context
+     * @return
+     */
+    public static String getLabel(ExpansionContext context) {
+        String label = context.getValue(VARIABLE_NAME);
+        if (label == null) {
+            label = compute(context.getTest());
+            context.putValue(VARIABLE_NAME, label);
+        }
+        return label;
+    }
+
+    private static String hash(String text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return Util.toHexString(digest.digest(text.getBytes(StandardCharsets.UTF_8))).substring(0, HASH_LENGTH);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.junit.TestResultAction;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic task that removes the links of tests that were not seen in a test report for the number of days
+ * or builds configured in the job configuration page. Keeps the maps from growing with links of tests that
+ * were renamed or deleted.
+ */
+@Extension
+public class StaleLinkCleanup extends AsyncPeriodicWork {
+
+    public StaleLinkCleanup() {
+        super("JiraTestResultReporter stale link cleanup");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (AbstractProject project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            if (project instanceof MatrixConfiguration) {
+                continue; //handled together with the parent
+            }
+            int days = parseLimit(JobConfigMapping.getInstance().getStaleLinkDays(project));
+            int builds = parseLimit(JobConfigMapping.getInstance().getStaleLinkBuilds(project));
+            if (days <= 0 && builds <= 0) {
+                continue;
+            }
+
+            long minTime = days > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days) : 0;
+            for (Job job : getJobs(project)) {
+                int minBuild = builds > 0 ? getMinBuild(job, builds) : 0;
+                Map<String, String> evicted = TestToIssueMapping.getInstance().evictStaleLinks(job, minBuild, minTime);
+                if (!evicted.isEmpty()) {
+                    JiraUtils.log("Removed " + evicted.size() + " stale test to issue links for job "
+                            + job.getFullName() + ": " + evicted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the oldest of the last completed builds with a test report. Running builds and builds that ended without
+     * a test report (aborted, failed before the tests) don't count, tests can't be seen in them.
+     * @param job
+     * @param builds the number of builds with a test report
+     * @return the number of the oldest of these builds, or 0 if the job has fewer builds with a test report
+     */
+    private static int getMinBuild(Job job, int builds) {
+        int found = 0;
+        for (Run run = job.getLastCompletedBuild(); run != null; run = run.getPreviousCompletedBuild()) {
+            if (run.getAction(TestResultAction.class) != null && ++found == builds) {
+                return run.getNumber();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Method for getting the jobs that have test to issue maps, for matrix projects these are the configurations
+     * @param project
+     * @return
+     */
+    private List<Job> getJobs(AbstractProject project) {
+        if (project instanceof MatrixProject) {
+            List<Job> jobs = new ArrayList<>();
+            for (Job child : ((MatrixProject) project).getAllJobs()) {
+                if (child != project) {
+                    jobs.add(child);
+                }
+            }
+            return jobs;
+        }
+        return Collections.<Job>singletonList(project);
+    }
+
+    /**
+     * Parses the configured limit
+     * @param limit
+     * @return the limit, or 0 if it is not configured or not a number
+     */
+    private static int parseLimit(String limit) {
+        if (limit == null || limit.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(limit.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
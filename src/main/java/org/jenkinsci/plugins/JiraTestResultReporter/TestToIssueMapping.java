@@ -17,30 +17,91 @@ package org.jenkinsci.plugins.JiraTestResultReporter;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonWriter;
 import hudson.matrix.MatrixProject;
 import hudson.model.Job;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.JiraTestResultReporter.storage.JsonMappingStorage;
+import org.jenkinsci.plugins.JiraTestResultReporter.storage.MappingStorage;
 
-import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by tuicu.
- * The class the stores the mapping from tests to issues. It is implemented as a singleton pattern, that has a large
- * map from job names to smaller maps that store the actual links from tests to issue keys. Each time a change is made
- * to a small map (add/remove a mapping from a test to a issue), only that small map gets serialized.
- * The file can be found in ${JENKINS_HOME}/job/${JOB_NAME}/JiraIssueKeyToTestMap
+ * The class the stores the mapping from tests to issues. It is implemented as a singleton pattern, that delegates
+ * to a {@link MappingStorage}. The storage is selected with the system property
+ * org.jenkinsci.plugins.JiraTestResultReporter.TestToIssueMapping.storage ("json" by default, or "h2" for
+ * controllers with a large number of jobs). Links of matrix projects are stored for each configuration.
+ * Every change of the links of a job gets a sequence number, taken from a sequence shared by all the jobs, so the
+ * sequence numbers of a job are always increasing. The sequence number of the last change is the version of the job's
+ * links, and the last changes of each job are kept in a bounded log, so clients can fetch only the changes since the
+ * version they have. Sequence numbers and logs restart with Jenkins, together with the epoch.
  */
 public class TestToIssueMapping {
+    public static final String STORAGE_PROPERTY = TestToIssueMapping.class.getName() + ".storage";
     private static final TestToIssueMapping instance = new TestToIssueMapping();
     private static final Gson GSON = new Gson();
-    private static final String MAP_FILE_NAME = "JiraIssueKeyToTestMap";
+    /**
+     * Maximum number of changes kept for each job
+     */
+    private static final int MAX_CHANGES = Integer.getInteger(TestToIssueMapping.class.getName() + ".maxChanges", 1000);
+
+    /**
+     * A link or an unlink of an issue
+     */
+    public static final class Change {
+        private final long sequence;
+        private final String testId;
+        private final String issueKey;
+        private final boolean added;
+
+        private Change(long sequence, String testId, String issueKey, boolean added) {
+            this.sequence = sequence;
+            this.testId = testId;
+            this.issueKey = issueKey;
+            this.added = added;
+        }
+
+        public long getSequence() { return sequence; }
+
+        public String getTestId() { return testId; }
+
+        /**
+         * Getter for the issue key
+         * @return the linked or unlinked issue
+         */
+        public String getIssueKey() { return issueKey; }
+
+        /**
+         * Checks if this change is a link
+         * @return true for a link, false for an unlink
+         */
+        public boolean isAdded() { return added; }
+    }
+
+    /**
+     * The last changes of a job, guarded by its own monitor, which is also notified when changes are added. Writes to
+     * the links of the job are done while holding the monitor, so the changes are recorded in the order in which
+     * they were made.
+     */
+    private static final class ChangeLog {
+        private final ArrayDeque<Change> changes = new ArrayDeque<>();
+        /** sequence number of the last change */
+        private long version;
+        /** sequence number of the last change dropped from the log, changes after it are all in the log */
+        private long truncatedAt;
+    }
+
     /**
      * Getter for the singleton instance
      * @return
@@ -49,127 +110,182 @@ public class TestToIssueMapping {
         return instance;
     }
 
-    private final Map<String, Map<String, String>> jobsMap;
+    private final MappingStorage storage;
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, ChangeLog> changeLogs = new ConcurrentHashMap<>();
 
     /**
      * Constructor. It will look into all jobs to see if there are any maps saved from previous Jenkins runs.
      */
     private TestToIssueMapping() {
-        jobsMap = new HashMap<>();
+        String storageId = System.getProperty(STORAGE_PROPERTY, JsonMappingStorage.ID);
+        MappingStorage configured = MappingStorage.forId(storageId);
+        if (configured == null) {
+            JiraUtils.logError("ERROR: Unknown test to issue mapping storage " + storageId + ", using "
+                    + JsonMappingStorage.ID);
+            configured = MappingStorage.forId(JsonMappingStorage.ID);
+        }
+        storage = configured;
         for(Job job : Jenkins.getInstance().getItems(Job.class)) {
             register(job);
         }
     }
 
     /**
-     * Method for saving the test to issue HashMap for the job
+     * Method for registering a job
      * @param job
-     * @param map
      */
-    private void saveMap(Job job, Map<String, String> map) {
-        try {
-            Gson gson = new Gson();
-            try (FileOutputStream fileOut = new FileOutputStream(getPathToFileMap(job) + ".json");
-                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(fileOut, "UTF-8")))
-            {
-                writer.setIndent("  ");
-                gson.toJson(map, HashMap.class, writer);
+    public void register(Job job) {
+        if(job instanceof MatrixProject) {
+            for(Job child : ((MatrixProject)job).getAllJobs()) {
+                if(child instanceof MatrixProject) continue; //parent job
+                register(child);
             }
+            return;
         }
-        catch (JsonIOException | IOException e) {
-            JiraUtils.logError("ERROR: Could not save job map", e);
+
+        storage.register(job);
+    }
+
+    /**
+     * Method for unregistering a job, called when the job is deleted. Maps of nested jobs (ex. matrix
+     * configurations) are dropped as well.
+     * @param fullName the full name of the deleted job
+     */
+    public void unregister(String fullName) {
+        storage.unregister(fullName);
+        removeChangeLogs(fullName);
+    }
+
+    /**
+     * Method for moving the maps of a renamed or moved job (and of its nested jobs) under the new name.
+     * @param oldFullName
+     * @param newFullName
+     */
+    public void rename(String oldFullName, String newFullName) {
+        storage.rename(oldFullName, newFullName);
+        for (Map.Entry<String, ChangeLog> entry : removeChangeLogs(oldFullName).entrySet()) {
+            changeLogs.put(newFullName + entry.getKey().substring(oldFullName.length()), entry.getValue());
         }
     }
 
     /**
-     * Method for constructing the path to the file map given a job object
-     * @param job
-     * @return
+     * Drops the change logs of a job and of the jobs nested under it
+     * @param fullName
+     * @return the full names of the jobs to their dropped logs
      */
-    private String getPathToFileMap(Job job) {
-        return job.getRootDir().toPath().resolve(MAP_FILE_NAME).toString();
+    private Map<String, ChangeLog> removeChangeLogs(String fullName) {
+        Map<String, ChangeLog> removed = new HashMap<>();
+        for (Iterator<Map.Entry<String, ChangeLog>> it = changeLogs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, ChangeLog> entry = it.next();
+            if (JiraUtils.isSameOrNestedName(entry.getKey(), fullName)) {
+                removed.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        return removed;
     }
 
+    private ChangeLog getChangeLog(Job job) {
+        ChangeLog log = changeLogs.get(job.getFullName());
+        if (log == null) {
+            ChangeLog created = new ChangeLog();
+            log = changeLogs.putIfAbsent(job.getFullName(), created);
+            if (log == null) {
+                log = created;
+            }
+        }
+        return log;
+    }
 
     /**
-     * Looks for the issue map from a previous version of the plugin and tries to load it
-     * and save it in the new format
+     * Records a change of the links of a job, and wakes up the clients waiting for it
      * @param job
-     * @return the loaded test to issue HashMap, or null if there was no file, or it could not be loaded
+     * @param testId
+     * @param issueKey
+     * @param added
      */
-    private Map<String, String> loadBackwardsCompatible(Job job) {
-        try {
-            Map<String, String> testToIssue;
-            try (FileInputStream fileIn = new FileInputStream(getPathToFileMap(job));
-                    ObjectInputStream in = new ObjectInputStream(fileIn))
-            {
-                testToIssue = (HashMap<String, String>) in.readObject();
-                JiraUtils.log("Found and successfully loaded issue map from a previous version for job: "
-                        + job.getFullName());
-                saveMap(job, testToIssue);
+    private void recordChange(Job job, String testId, String issueKey, boolean added) {
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            Change change = new Change(sequence.incrementAndGet(), testId, issueKey, added);
+            log.changes.addLast(change);
+            log.version = change.getSequence();
+            while (log.changes.size() > MAX_CHANGES) {
+                log.truncatedAt = log.changes.removeFirst().getSequence();
             }
-            return testToIssue;
-        } catch (FileNotFoundException e) {
-            JiraUtils.logError(e.getMessage(), e);
-        } catch (Exception e) {
-            JiraUtils.logError("ERROR: Found issue map from a previous version, but was unable to load it for job "
-                    + job.getFullName(), e);
+            log.notifyAll();
+        }
+        if (!added) {
+            // the next failure with the fingerprint of the issue is not a duplicate of it anymore
+            JiraUtils.forgetRecentIssue(issueKey);
         }
-        return null;
     }
 
     /**
-     * Loads the test to issue HashMap from the file associated with the project
+     * Getter for the changes of the links of a job after a version. The job must not be a matrix project.
      * @param job
-     * @return the loaded test to issue HashMap
+     * @param since the version the client has, changes with a greater sequence number are returned
+     * @param timeout milliseconds to wait for a change if there is none after the version, 0 to return at once
+     * @return the changes in order, or null if some of them were already dropped from the log (or the version
+     * is from the future), in which case the client needs to fetch all the links again
+     * @throws InterruptedException
      */
-    private Map<String, String> loadMap(Job job) {
-        Map<String, String> testToIssue = null;
-        try {
-            Gson gson = new Gson();
-            try (FileInputStream fileIn = new FileInputStream(getPathToFileMap(job) + ".json");
-                    JsonReader reader = new JsonReader(new InputStreamReader(fileIn, "UTF-8")))
-            {
-                
-                testToIssue = gson.fromJson(reader, HashMap.class);
+    public List<Change> getChanges(Job job, long since, long timeout) throws InterruptedException {
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (log.version == since && remaining > 0) {
+                log.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
             }
-            return testToIssue;
-        } catch (FileNotFoundException e) {
-            testToIssue = loadBackwardsCompatible(job);
-            if(testToIssue == null) {
-                JiraUtils.log("No map found for job " + job.getFullName());
-            } else {
-                return testToIssue;
+            if (since < log.truncatedAt || since > log.version) {
+                return null;
             }
-        } catch (Exception e) {
-            JiraUtils.logError("ERROR: Could not load map for job " + job.getFullName(), e);
-            e.printStackTrace();
+            List<Change> changes = new ArrayList<>();
+            for (Iterator<Change> it = log.changes.descendingIterator(); it.hasNext(); ) {
+                Change change = it.next();
+                if (change.getSequence() <= since) {
+                    break;
+                }
+                changes.add(0, change);
+            }
+            return changes;
         }
+    }
 
-        return new HashMap<>();
+    /**
+     * Getter for the time when the sequence numbers started, versions from different epochs can't be compared
+     * @return
+     */
+    public long getEpoch() {
+        return epoch;
     }
 
     /**
-     * Method for registering a job
+     * Getter for the version of the links of a job. The version of a matrix project is the highest version of its
+     * configurations.
      * @param job
+     * @return the version, 0 if the links did not change since Jenkins started
      */
-    public void register(Job job) {
-        if(job instanceof MatrixProject) {
-            for(Job child : ((MatrixProject)job).getAllJobs()) {
-                if(child instanceof MatrixProject) continue; //parent job
-                register(child);
+    public long getVersion(Job job) {
+        if (job instanceof MatrixProject) {
+            long version = 0;
+            for (Job child : ((MatrixProject) job).getAllJobs()) {
+                if (child != job) {
+                    version = Math.max(version, getVersion(child));
+                }
             }
-            return;
+            return version;
         }
-
-        if(jobsMap.containsKey(job.getFullName()))
-            return;
-
-        synchronized(jobsMap) {
-            if(jobsMap.containsKey(job.getFullName()))
-                return;
-
-            jobsMap.put(job.getFullName(), loadMap(job));
+        ChangeLog log = changeLogs.get(job.getFullName());
+        if (log == null) {
+            return 0;
+        }
+        synchronized (log) {
+            return log.version;
         }
     }
 
@@ -180,16 +296,11 @@ public class TestToIssueMapping {
      * @param issueKey
      */
     public void addTestToIssueMapping(Job job, String testId, String issueKey) {
-        Map<String, String> jobMap = jobsMap.get(job.getFullName());
-        if(jobMap == null) {
-            JiraUtils.log("ERROR: Unregistered job " + job.getFullName());
-            register(job);
-            jobMap = jobsMap.get(job.getFullName());
-        }
-
-        synchronized (jobMap) {
-            jobMap.put(testId, issueKey);
-            saveMap(job, jobMap);
+        int lastBuild = job.getLastBuild() != null ? job.getLastBuild().getNumber() : 0;
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            String previousIssueKey = storage.addLink(job, testId, issueKey, lastBuild, System.currentTimeMillis());
+            recordReplacement(job, testId, previousIssueKey, issueKey);
         }
     }
 
@@ -200,17 +311,51 @@ public class TestToIssueMapping {
      * @param issueKey
      */
     public void removeTestToIssueMapping(Job job, String testId, String issueKey) {
-        Map<String, String> jobMap = jobsMap.get(job.getFullName());
-        if(jobMap == null) {
-            JiraUtils.logError("ERROR: Unregistered job " + job.getFullName());
-            return;
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            if (storage.removeLink(job, testId, issueKey)) {
+                recordChange(job, testId, issueKey, false);
+            }
         }
+    }
 
-        synchronized (jobMap) {
-            if(jobMap.get(testId).equals(issueKey)) {
-                jobMap.remove(testId);
-                saveMap(job, jobMap);
+    /**
+     * Link and unlink issues in one write
+     * @param job
+     * @param added test id to the issue key to link, replacing the current link of the test
+     * @param removed test id to the issue key to unlink, if the test is still linked to that issue
+     * @return the previous links of the added tests and the ids of the tests that were unlinked
+     */
+    public MappingStorage.LinkUpdate updateTestToIssueMappings(Job job, Map<String, String> added,
+                                                               Map<String, String> removed) {
+        int lastBuild = job.getLastBuild() != null ? job.getLastBuild().getNumber() : 0;
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            MappingStorage.LinkUpdate update = storage.updateLinks(job, added, removed, lastBuild,
+                    System.currentTimeMillis());
+            for (Map.Entry<String, String> link : update.getReplaced().entrySet()) {
+                recordReplacement(job, link.getKey(), link.getValue(), added.get(link.getKey()));
+            }
+            for (String testId : update.getUnlinked()) {
+                recordChange(job, testId, removed.get(testId), false);
             }
+            return update;
+        }
+    }
+
+    /**
+     * Records the changes made by linking a test that was linked to another issue (or to none)
+     * @param job
+     * @param testId
+     * @param previousIssueKey the issue the test was linked to, null if it was not linked
+     * @param issueKey the issue the test is linked to now
+     */
+    private void recordReplacement(Job job, String testId, String previousIssueKey, String issueKey) {
+        if (previousIssueKey != null && !previousIssueKey.equals(issueKey)) {
+            recordChange(job, testId, previousIssueKey, false);
+        }
+        if (!issueKey.equals(previousIssueKey)) {
+            recordChange(job, testId, issueKey, true);
         }
     }
 
@@ -221,13 +366,69 @@ public class TestToIssueMapping {
      * @return
      */
     public String getTestIssueKey(Job job, String testId) {
-        Map<String, String> jobMap = jobsMap.get(job.getFullName());
-        if(jobMap == null) {
-            JiraUtils.logWarning("WARNING: Unregistered job " + job.getFullName());
-            register(job);
-            return jobsMap.get(job.getFullName()) != null ? jobsMap.get(job.getFullName()).get(testId) : null;
+        return storage.getIssueKey(job, testId);
+    }
+
+    /**
+     * Get the tests linked to an issue
+     * @param job
+     * @param issueKey
+     * @return
+     */
+    public List<String> getIssueTestIds(Job job, String issueKey) {
+        return storage.getTestIds(job, issueKey);
+    }
+
+    /**
+     * Records that the given tests were part of a build's test report. Only tests that have a linked issue
+     * are tracked.
+     * @param job
+     * @param testIds ids of all the tests from the report
+     * @param buildNumber
+     * @param time the time of the build
+     */
+    public void markSeen(Job job, Collection<String> testIds, int buildNumber, long time) {
+        storage.markSeen(job, testIds, buildNumber, time);
+    }
+
+    /**
+     * Removes the links of the tests that were not seen since the given build number or time.
+     * @param job
+     * @param minBuild links last seen in an older build are evicted, ignored if 0 or less
+     * @param minTime links last seen before this time are evicted, ignored if 0 or less
+     * @return test id to issue key, for the evicted links
+     */
+    public Map<String, String> evictStaleLinks(Job job, int minBuild, long minTime) {
+        ChangeLog log = getChangeLog(job);
+        synchronized (log) {
+            Map<String, String> evicted = storage.evictStaleLinks(job, minBuild, minTime);
+            for (Map.Entry<String, String> link : evicted.entrySet()) {
+                recordChange(job, link.getKey(), link.getValue(), false);
+            }
+            return evicted;
         }
-        return jobMap.get(testId);
+    }
+
+    /**
+     * Getter for a page of the links of a job, ordered by test id. The job must not be a matrix project.
+     * @param job
+     * @param offset the number of links to skip
+     * @param limit the maximum number of links to return
+     * @return the links, from test id to issue key
+     */
+    public SortedMap<String, String> getLinks(Job job, int offset, int limit) {
+        return storage.getLinks(job, offset, limit);
+    }
+
+    /**
+     * Getter for the links of a job after a test id, ordered by test id. The job must not be a matrix project.
+     * @param job
+     * @param after the test id of the last link of the previous page, null for the first page
+     * @param limit the maximum number of links to return
+     * @return the links, from test id to issue key
+     */
+    public SortedMap<String, String> getLinksAfter(Job job, String after, int limit) {
+        return storage.getLinksAfter(job, after, limit);
     }
 
     public JsonElement getMap(MatrixProject matrixProject, String subJobName) {
@@ -251,13 +452,7 @@ public class TestToIssueMapping {
         if(job instanceof MatrixProject) {
             return getMap((MatrixProject)job);
         } else {
-            Map<String, String> jobMap = jobsMap.get(job.getFullName());
-            if(jobMap == null) {
-                jobMap = new HashMap<>();
-            }
-            synchronized (jobMap) {
-                return GSON.toJsonTree(jobMap);
-            }
+            return GSON.toJsonTree(storage.getLinks(job));
         }
     }
-}
\ No newline at end of file
+}
@@ -21,29 +21,222 @@ import hudson.tasks.junit.CaseResult;
 import hudson.tasks.test.TestResult;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Created by tuicu.
- * Class for expanding environment variables and variables defined by this plugin
+ * Class for expanding environment variables and variables defined by this plugin. Templates are parsed once into
+ * literal and variable segments (see {@link CompiledTemplate}) and rendered in a single pass.
  */
 public class VariableExpander {
-    private interface Delegate {
-        String expand(TestResult test, EnvVars envVars);
+    /**
+     * The variables defined by this plugin
+     */
+    private static abstract class Delegate extends VariableProvider {
+        private final Cost cost;
+        private String name;
+
+        Delegate() {
+            this(Cost.CHEAP);
+        }
+
+        Delegate(Cost cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Cost getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Delegate for variables that expand to another template. The template is rendered with the context of the
+     * test, so the variables it shares with the other fields are computed only once.
+     */
+    private static abstract class TemplateDelegate extends Delegate {
+        abstract String getTemplate();
+
+        @Override
+        public String expand(TestResult test, EnvVars envVars) {
+            return expandVariables(test, envVars, getTemplate());
+        }
+    }
+
+    /**
+     * Size budget of a variable, parsed from the modifiers in ${VAR_NAME:head=lines,tail=lines,max=chars}.
+     * head keeps the first lines, tail keeps the last lines (head takes precedence if both are set), and max
+     * limits the number of characters. A value of 0 means no limit.
+     */
+    static final class Budget {
+        static final Budget NONE = new Budget(0, 0, 0);
+        private final int headLines;
+        private final int tailLines;
+        private final int maxChars;
+
+        Budget(int headLines, int tailLines, int maxChars) {
+            this.headLines = headLines;
+            this.tailLines = tailLines;
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * Parses the modifiers of a variable
+         * @param modifiers comma separated list of name=value, can be null
+         * @return the budget, or null if the modifiers are not valid
+         */
+        static Budget parse(String modifiers) {
+            if (modifiers == null) {
+                return NONE;
+            }
+            int head = 0, tail = 0, max = 0;
+            for (String modifier : modifiers.split(",")) {
+                String[] nameValue = modifier.split("=");
+                if (nameValue.length != 2) {
+                    return null;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(nameValue[1]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (nameValue[0].equals("head")) {
+                    head = value;
+                } else if (nameValue[0].equals("tail")) {
+                    tail = value;
+                } else if (nameValue[0].equals("max")) {
+                    max = value;
+                } else {
+                    return null;
+                }
+            }
+            return new Budget(head, tail, max);
+        }
+
+        boolean isBounded() {
+            return headLines > 0 || tailLines > 0 || maxChars > 0;
+        }
+
+        /**
+         * Returns this budget with the character limit set to the given one, if there is no explicit limit
+         * @param maxChars
+         * @return
+         */
+        Budget withDefaultMax(int maxChars) {
+            if (this.maxChars > 0 || maxChars <= 0) {
+                return this;
+            }
+            return new Budget(headLines, tailLines, maxChars);
+        }
+    }
+
+    /**
+     * A template parsed into literal and variable segments. There is always one more literal than variables,
+     * literal i is followed by variable i.
+     */
+    public static final class CompiledTemplate {
+        private final String[] literals;
+        private final String[] variables;
+        private final Budget[] budgets;
+        private final String[] tokens;
+
+        private CompiledTemplate(String[] literals, String[] variables, Budget[] budgets, String[] tokens) {
+            this.literals = literals;
+            this.variables = variables;
+            this.budgets = budgets;
+            this.tokens = tokens;
+        }
+
+        /**
+         * Getter for the names of the variables used in this template
+         * @return
+         */
+        public String[] getVariables() {
+            return variables.clone();
+        }
+
+        /**
+         * Checks if the template has any variables
+         * @return
+         */
+        public boolean hasVariables() {
+            return variables.length != 0;
+        }
+
+        /**
+         * Renders the template, appending the result to the builder
+         * @param context the expansion context of the test
+         * @param out
+         */
+        public void render(ExpansionContext context, StringBuilder out) {
+            render(context, out, 0);
+        }
+
+        private void render(ExpansionContext context, StringBuilder out, int depth) {
+            for (int i = 0; i < variables.length; i++) {
+                out.append(literals[i]);
+                appendVariable(variables[i], budgets[i], tokens[i], context, out, depth);
+            }
+            out.append(literals[variables.length]);
+        }
     }
-    static Pattern varPattern = java.util.regex.Pattern.compile("\\$\\{([\\w\\_]+)\\}");
+
+    private static final int MAX_CACHED_TEMPLATES = 512;
+    private static final int MAX_NESTING = 8;
+    private static final String TRUNCATION_MARKER = "[...]";
+    private static final Map<String, CompiledTemplate> templateCache = new ConcurrentHashMap<>();
+    /**
+     * Variables that can expand to very large values, limited by the global maximum length if they don't have
+     * an explicit character limit
+     */
+    static final Set<String> HEAVY_VARIABLES = new HashSet<>(Arrays.asList(
+            "TEST_STDOUT", "TEST_STDERR", "TEST_STACK_TRACE", "TEST_OVERVIEW"));
+
+    private static final int MAX_CACHED_REMOTE_VALUES = 1024;
+    /**
+     * Values of the contributed variables with {@link VariableProvider.Cost#REMOTE} cost, for each build
+     */
+    private static final Map<String, String> remoteValueCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_REMOTE_VALUES;
+                }
+            });
+
+    static Pattern varPattern = java.util.regex.Pattern.compile("\\$\\{([\\w\\_]+)(?::([\\w=,]+))?\\}");
     static HashMap<String, Delegate> expanders = new HashMap<String, Delegate>();
+
+    private static void register(String name, Delegate delegate) {
+        delegate.name = name;
+        expanders.put(name, delegate);
+    }
+
     static {
-        expanders.put("CRLF", new Delegate() {
+        register("CRLF", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return "\n";
             }
         });
 
-        expanders.put("TEST_RESULT", new Delegate() {
+        register("TEST_RESULT", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 if (test instanceof CaseResult && ((CaseResult)test).isSkipped()) {
@@ -53,42 +246,42 @@ public class VariableExpander {
             }
         });
 
-        expanders.put("TEST_NAME", new Delegate() {
+        register("TEST_NAME", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getDisplayName();
             }
         });
 
-        expanders.put("TEST_FULL_NAME",  new Delegate() {
+        register("TEST_FULL_NAME",  new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getFullDisplayName();
             }
         });
 
-        expanders.put("TEST_STACK_TRACE", new Delegate() {
+        register("TEST_STACK_TRACE", new Delegate(Cost.IO) {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getErrorStackTrace();
             }
         });
 
-        expanders.put("TEST_ERROR_DETAILS", new Delegate() {
+        register("TEST_ERROR_DETAILS", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getErrorDetails();
             }
         });
 
-        expanders.put("TEST_DURATION", new Delegate() {
+        register("TEST_DURATION", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getDurationString();
             }
         });
 
-        expanders.put("TEST_PACKAGE_NAME", new Delegate() {
+        register("TEST_PACKAGE_NAME", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 if(test instanceof CaseResult) {
@@ -98,14 +291,14 @@ public class VariableExpander {
             }
         });
 
-        expanders.put("TEST_STDERR", new Delegate() {
+        register("TEST_STDERR", new Delegate(Cost.IO) {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getStderr();
             }
         });
 
-        expanders.put("TEST_STDOUT", new Delegate() {
+        register("TEST_STDOUT", new Delegate(Cost.IO) {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.getStdout();
@@ -113,14 +306,14 @@ public class VariableExpander {
         });
 
 
-        expanders.put("TEST_OVERVIEW", new Delegate() {
+        register("TEST_OVERVIEW", new Delegate(Cost.IO) {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return test.toPrettyString();
             }
         });
 
-        expanders.put("TEST_AGE", new Delegate() {
+        register("TEST_AGE", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 if(test instanceof CaseResult) {
@@ -130,35 +323,35 @@ public class VariableExpander {
             }
         });
 
-        expanders.put("TEST_PASS_COUNT", new Delegate() {
+        register("TEST_PASS_COUNT", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return String.valueOf(test.getPassCount());
             }
         });
 
-        expanders.put("TEST_FAIL_COUNT", new Delegate() {
+        register("TEST_FAIL_COUNT", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return String.valueOf(test.getFailCount());
             }
         });
 
-        expanders.put("TEST_SKIPPED_COUNT", new Delegate() {
+        register("TEST_SKIPPED_COUNT", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return String.valueOf(test.getSkipCount());
             }
         });
 
-        expanders.put("TEST_FAIL_SINCE", new Delegate() {
+        register("TEST_FAIL_SINCE", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 return String.valueOf(test.getFailedSince());
             }
         });
 
-        expanders.put("TEST_IS_REGRESSION", new Delegate() {
+        register("TEST_IS_REGRESSION", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
                 if(test instanceof CaseResult) {
@@ -168,59 +361,305 @@ public class VariableExpander {
             }
         });
 
-        expanders.put("BUILD_RESULT", new Delegate() {
+        register(StackTraceFingerprint.VARIABLE_NAME, new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
-                return test.getBuildResult().toString();
+                return StackTraceFingerprint.compute(test);
             }
         });
 
-        expanders.put("DEFAULT_SUMMARY", new Delegate() {
+        register("BUILD_RESULT", new Delegate() {
             @Override
             public String expand(TestResult test, EnvVars envVars) {
-                return expandVariables(test, envVars, JiraUtils.getJiraDescriptor().getDefaultSummary());
+                return test.getBuildResult().toString();
             }
         });
 
-        expanders.put("DEFAULT_DESCRIPTION", new Delegate() {
+        register("DEFAULT_SUMMARY", new TemplateDelegate() {
             @Override
-            public String expand(TestResult test, EnvVars envVars) {
-                return expandVariables(test, envVars, JiraUtils.getJiraDescriptor().getDefaultDescription());
+            String getTemplate() {
+                return JiraUtils.getJiraDescriptor().getDefaultSummary();
+            }
+        });
+
+        register("DEFAULT_DESCRIPTION", new TemplateDelegate() {
+            @Override
+            String getTemplate() {
+                return JiraUtils.getJiraDescriptor().getDefaultDescription();
             }
         });
     }
 
     /**
-     * Expands the variables from the test paramater, given a TestResult instance for extracting the
-     * necessary information
-     * @param test
+     * Parses a template, or returns the cached result of a previous parse of the same text
      * @param text
      * @return
      */
-    public static String expandVariables(TestResult test, EnvVars envVars, String text) {
-        if(test == null)
-            return text;
+    public static CompiledTemplate compile(String text) {
+        CompiledTemplate template = templateCache.get(text);
+        if (template != null) {
+            return template;
+        }
 
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        List<Budget> budgets = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
         Matcher matcher = varPattern.matcher(text);
-        ArrayList<String> varsFound = new ArrayList<String>();
+        int literalStart = 0;
         while (matcher.find()) {
-            varsFound.add(matcher.group(1));
+            Budget budget = Budget.parse(matcher.group(2));
+            if (budget == null) {
+                continue; //invalid modifiers, leave it as text
+            }
+            literals.add(text.substring(literalStart, matcher.start()));
+            variables.add(matcher.group(1));
+            budgets.add(budget);
+            tokens.add(matcher.group());
+            literalStart = matcher.end();
+        }
+        literals.add(text.substring(literalStart));
+        template = new CompiledTemplate(literals.toArray(new String[literals.size()]),
+                variables.toArray(new String[variables.size()]),
+                budgets.toArray(new Budget[budgets.size()]),
+                tokens.toArray(new String[tokens.size()]));
+
+        if (templateCache.size() >= MAX_CACHED_TEMPLATES) {
+            templateCache.clear();
         }
+        templateCache.put(text, template);
+        return template;
+    }
 
-        for(String varName : varsFound) {
-            if(envVars.containsKey(varName)) {
-                text = text.replace(new StringBuilder().append("${").append(varName).append("}").toString(),
-                                    envVars.get(varName));
-                continue;
+    /**
+     * Appends the value of a variable. Environment variables take precedence over the variables defined by this
+     * plugin and the contributed ones, unknown variables are left unexpanded. Values are memoized in the context.
+     */
+    private static void appendVariable(String varName, Budget budget, String token, ExpansionContext context,
+                                       StringBuilder out, int depth) {
+        EnvVars envVars = context.getEnvVars();
+        if (envVars.containsKey(varName)) {
+            appendBounded(envVars.get(varName), budget, out);
+            return;
+        }
+
+        VariableProvider provider = getProvider(varName);
+        if (provider == null) {
+            out.append(token);
+            return;
+        }
+
+        if (HEAVY_VARIABLES.contains(varName)) {
+            budget = budget.withDefaultMax(JiraUtils.getJiraDescriptor().getMaxVariableLength());
+        }
+        String value = context.getValue(varName);
+        if (value == null) {
+            if (provider instanceof TemplateDelegate) {
+                if (depth >= MAX_NESTING) {
+                    out.append(token);
+                    return;
+                }
+                StringBuilder nested = new StringBuilder();
+                compile(((TemplateDelegate) provider).getTemplate()).render(context, nested, depth + 1);
+                value = nested.toString();
+            } else {
+                value = computeValue(provider, context);
+                if (value == null) {
+                    out.append(token);
+                    return;
+                }
+            }
+            context.putValue(varName, value);
+        }
+        appendBounded(value, budget, out);
+    }
+
+    /**
+     * Finds the provider of a variable, the variables defined by this plugin take precedence
+     * @param varName
+     * @return the provider, or null if the variable is unknown
+     */
+    private static VariableProvider getProvider(String varName) {
+        VariableProvider provider = expanders.get(varName);
+        if (provider != null) {
+            return provider;
+        }
+        for (VariableProvider contributed : VariableProvider.all()) {
+            if (varName.equals(contributed.getName())) {
+                return contributed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes the value of a variable. Remote values are cached for each build (and test, if they depend on it).
+     * @param provider
+     * @param context
+     * @return the value, or null if the provider failed
+     */
+    private static String computeValue(VariableProvider provider, ExpansionContext context) {
+        String cacheKey = null;
+        String buildTag = context.getEnvVars().get("BUILD_TAG");
+        if (provider.getCost() == VariableProvider.Cost.REMOTE && buildTag != null) {
+            cacheKey = buildTag + "\u0000" + provider.getName()
+                    + (provider.isTestSpecific() ? "\u0000" + context.getTest().getId() : "");
+            String cached = remoteValueCache.get(cacheKey);
+            JiraMetrics.recordCacheLookup(JiraMetrics.REMOTE_VARIABLES_CACHE, cached != null);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String value;
+        try {
+            value = Util.fixNull(provider.expand(context.getTest(), context.getEnvVars()));
+        } catch (RuntimeException e) {
+            JiraUtils.logWarning("WARNING: Could not expand variable " + provider.getName(), e);
+            return null;
+        }
+        if (cacheKey != null) {
+            remoteValueCache.put(cacheKey, value);
+        }
+        return value;
+    }
+
+    /**
+     * Appends the part of the value that fits in the budget, directly from the value, without intermediate copies.
+     * A marker is added where the value was cut.
+     * @param value
+     * @param budget
+     * @param out
+     */
+    static void appendBounded(String value, Budget budget, StringBuilder out) {
+        if (!budget.isBounded()) {
+            out.append(value);
+            return;
+        }
+
+        int start = 0;
+        int end = value.length();
+        boolean fromEnd = false;
+        if (budget.headLines > 0) {
+            end = endOfFirstLines(value, budget.headLines);
+        } else if (budget.tailLines > 0) {
+            start = startOfLastLines(value, budget.tailLines);
+            fromEnd = true;
+        }
+
+        if (budget.maxChars > 0 && end - start > budget.maxChars) {
+            if (fromEnd) {
+                start = end - budget.maxChars;
+            } else {
+                end = start + budget.maxChars;
+            }
+        }
+
+        if (start > 0) {
+            out.append(TRUNCATION_MARKER).append('\n');
+        }
+        out.append(value, start, end);
+        if (end < value.length()) {
+            out.append('\n').append(TRUNCATION_MARKER);
+        }
+    }
+
+    /**
+     * Finds the end (exclusive, without the line separator) of the first lines of the text
+     */
+    private static int endOfFirstLines(String text, int lines) {
+        int position = -1;
+        for (int i = 0; i < lines; i++) {
+            position = text.indexOf('\n', position + 1);
+            if (position < 0) {
+                return text.length();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Finds the start of the last lines of the text, a trailing line separator does not count as a line
+     */
+    private static int startOfLastLines(String text, int lines) {
+        int position = text.endsWith("\n") ? text.length() - 1 : text.length();
+        for (int i = 0; i < lines; i++) {
+            position = text.lastIndexOf('\n', position - 1);
+            if (position < 0) {
+                return 0;
             }
+        }
+        return position + 1;
+    }
 
-            if(expanders.containsKey(varName)) {
-                text = text.replace(new StringBuilder().append("${").append(varName).append("}").toString(),
-                                    Util.fixNull(expanders.get(varName).expand(test, envVars)));
+    /**
+     * Collects the names of the variables that can be read from the environment when the text is rendered: the
+     * variables of the text and of the templates they expand to, and the environment variables required by the
+     * contributed variables
+     * @param text
+     * @param names the set to which the names are added
+     */
+    public static void collectEnvVarNames(String text, Set<String> names) {
+        collectEnvVarNames(text, names, 0);
+    }
+
+    private static void collectEnvVarNames(String text, Set<String> names, int depth) {
+        if (text == null || depth > MAX_NESTING) {
+            return;
+        }
+        for (String varName : compile(text).variables) {
+            if (!names.add(varName)) {
+                continue;
+            }
+            VariableProvider provider = getProvider(varName);
+            if (provider instanceof TemplateDelegate) {
+                collectEnvVarNames(((TemplateDelegate) provider).getTemplate(), names, depth + 1);
+            } else if (provider != null) {
+                names.addAll(provider.getRequiredEnvVars());
             }
         }
+    }
+
+    /**
+     * Checks if the text contains variables that need to be expanded
+     * @param text
+     * @return
+     */
+    public static boolean hasVariables(String text) {
+        return text != null && compile(text).hasVariables();
+    }
 
-        return text;
+    /**
+     * Expands the variables from the test paramater, given a TestResult instance for extracting the
+     * necessary information
+     * @param test
+     * @param text
+     * @return
+     */
+    public static String expandVariables(TestResult test, EnvVars envVars, String text) {
+        if(test == null)
+            return text;
+
+        return expandVariables(new ExpansionContext(test, envVars), text);
+    }
+
+    /**
+     * Expands the variables from the text, reusing the values already computed for the test in the context
+     * @param context
+     * @param text
+     * @return
+     */
+    public static String expandVariables(ExpansionContext context, String text) {
+        if(context.getTest() == null)
+            return text;
+
+        CompiledTemplate template = compile(text);
+        if (!template.hasVariables()) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() * 2);
+        template.render(context, out);
+        return out.toString();
     }
 
 }
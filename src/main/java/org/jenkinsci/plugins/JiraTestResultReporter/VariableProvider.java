@@ -0,0 +1,93 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import hudson.EnvVars;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.tasks.test.TestResult;
+import jenkins.model.Jenkins;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Extension point for contributing variables that can be used in the issue fields, as ${NAME}. Variables are
+ * only computed if they appear in the configured templates, at most once per test. The variables defined by
+ * this plugin take precedence over the contributed ones, and environment variables take precedence over both.
+ */
+public abstract class VariableProvider implements ExtensionPoint {
+
+    /**
+     * How expensive it is to compute the value of a variable
+     */
+    public enum Cost {
+        /** Computed from data already in memory */
+        CHEAP,
+        /** Reads files from the controller */
+        IO,
+        /** Calls a remote service, the values are cached for each build */
+        REMOTE
+    }
+
+    /**
+     * Getter for the name of the variable, used as ${NAME}. Should contain only letters, digits and underscores.
+     * @return
+     */
+    public abstract String getName();
+
+    /**
+     * Computes the value of the variable
+     * @param test the test for which the issue is created
+     * @param envVars the environment variables of the build
+     * @return the value, null is replaced by the empty string
+     */
+    public abstract String expand(TestResult test, EnvVars envVars);
+
+    /**
+     * Getter for the cost class of this variable
+     * @return
+     */
+    public Cost getCost() {
+        return Cost.CHEAP;
+    }
+
+    /**
+     * Checks if the value depends on the test. Remote values that don't are computed only once per build.
+     * @return
+     */
+    public boolean isTestSpecific() {
+        return true;
+    }
+
+    /**
+     * Getter for the names of the environment variables read by {@link #expand}. Only the environment variables
+     * used by the templates of a job are saved with its builds, so the ones read here must be declared to be
+     * available when an issue is created from the test report of a finished build.
+     * @return
+     */
+    public Collection<String> getRequiredEnvVars() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Getter for all the contributed variables
+     * @return
+     */
+    public static ExtensionList<VariableProvider> all() {
+        return Jenkins.getInstance().getExtensionList(VariableProvider.class);
+    }
+}
@@ -1,72 +1,523 @@
 package org.jenkinsci.plugins.JiraTestResultReporter.api;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.google.gson.stream.JsonWriter;
 import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
 import hudson.model.Api;
+import hudson.model.Item;
 import hudson.model.Job;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
+import org.jenkinsci.plugins.JiraTestResultReporter.JobConfigMapping;
 import org.jenkinsci.plugins.JiraTestResultReporter.TestToIssueMapping;
+import org.jenkinsci.plugins.JiraTestResultReporter.storage.MappingStorage;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.regex.Pattern;
 
 /**
  * Created by tuicu on 12/08/16.
+ * Serves the links of a job as JSON, from test id to issue key (for a whole matrix project, from configuration name
+ * to its links). The JSON is streamed to the response, gzipped if the client accepts it. The links of a job (or of a
+ * configuration, job=matrix/configuration) can be read in pages, ordered by test id, with the limit parameter and
+ * either offset or after (the last test id of the previous page); the X-Next-Offset and X-Next-After headers are set
+ * if there are more links. Reading with after costs the same for every page. Responses carry an ETag built from the
+ * version of the links, so clients polling an unchanged map get a 304.
+ * The epoch and the version are also sent in the X-Mapping-Epoch and X-Mapping-Version headers, so clients mirroring
+ * the links can then follow only the changes, see {@link #doChanges}.
+ * For tools that sync links, lookup and update take a batch of operations as a POSTed JSON object, see
+ * {@link #doLookup} and {@link #doUpdate}.
  */
 public class TestToIssueMappingApi extends Api {
-    private static final Gson GSON = new GsonBuilder()
-            .disableHtmlEscaping()
-            .setPrettyPrinting()
-            .create();
-
     public Api getApi() {
         return this;
     }
 
+    /** Maximum number of operations in one lookup or update request */
+    private static final int MAX_BATCH_SIZE = 10000;
+    /** Number of links read from the storage at a time when a whole map is written */
+    private static final int STREAM_CHUNK_SIZE = 1000;
+    /**
+     * Maximum number of seconds a request for changes can wait. A waiting request holds a servlet container thread,
+     * so the wait is kept short; clients that want to follow changes longer poll again.
+     */
+    private static final int MAX_WAIT_SECONDS = 20;
+
     public TestToIssueMappingApi() {
         super(null);
     }
 
+    /**
+     * Resolves a job name from a request, "name" for a top level job or "matrix/configuration" for a configuration
+     * of a matrix project
+     * @param jobName
+     * @return the job, or null if it doesn't exist or is not visible to the user
+     */
+    private static Job getJob(String jobName) {
+        if (jobName == null) {
+            return null;
+        }
+        if (jobName.contains("/")) {
+            String[] names = jobName.split("/", 2);
+            Item item = Jenkins.getActiveInstance().getItem(names[0]);
+            return item instanceof MatrixProject ? ((MatrixProject) item).getItem(names[1]) : null;
+        }
+        Item item = Jenkins.getActiveInstance().getItem(jobName);
+        return item instanceof Job ? (Job) item : null;
+    }
+
+    /**
+     * Getter for the project that holds the configuration of a job
+     * @param job
+     * @return the matrix project for a configuration, the job itself otherwise, null if it is not a project
+     */
+    private static AbstractProject getProject(Job job) {
+        if (job.getParent() instanceof MatrixProject) {
+            return (MatrixProject) job.getParent();
+        }
+        return job instanceof AbstractProject ? (AbstractProject) job : null;
+    }
+
+    /**
+     * Serves the changes of the links of a job (or of a configuration, job=matrix/configuration) after a version,
+     * with the parameters epoch and since, taken from the X-Mapping-Epoch and X-Mapping-Version headers of the full
+     * map or from a previous response. With wait=seconds (at most 20, each waiting request holds a thread of the
+     * servlet container) the request waits for a change if there is none yet. The response is
+     * {"epoch": 1, "version": 12, "reset": false, "changes": [{"sequence": 11, "testId": "id", "issueKey": "KEY-1",
+     * "action": "link" or "unlink"}, ...]}. Sequence numbers of a job increase, but are not consecutive. If reset is
+     * true the changes are no longer available (Jenkins restarted, or too many changes happened since), and the
+     * client needs to fetch the full map again.
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    public void doChanges(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Job job = getJob(req.getParameter("job"));
+        if (job == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (job instanceof MatrixProject) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Changes can only be read for a configuration of a matrix project (job=matrix/configuration)");
+            return;
+        }
+
+        long epoch;
+        long since;
+        int wait;
+        try {
+            epoch = Long.parseLong(req.getParameter("epoch"));
+            since = Long.parseLong(req.getParameter("since"));
+            wait = Math.min(getIntParameter(req, "wait", 0), MAX_WAIT_SECONDS);
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "epoch and since must be set, wait must be a number");
+            return;
+        }
+
+        TestToIssueMapping mapping = TestToIssueMapping.getInstance();
+        List<TestToIssueMapping.Change> changes = null;
+        if (epoch == mapping.getEpoch()) {
+            try {
+                changes = mapping.getChanges(job, since, wait * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+
+        JSONArray changesJson = new JSONArray();
+        long version = since;
+        if (changes != null) {
+            for (TestToIssueMapping.Change change : changes) {
+                JSONObject changeJson = new JSONObject();
+                changeJson.put("sequence", change.getSequence());
+                changeJson.put("testId", change.getTestId());
+                changeJson.put("issueKey", change.getIssueKey());
+                changeJson.put("action", change.isAdded() ? "link" : "unlink");
+                changesJson.add(changeJson);
+                version = change.getSequence();
+            }
+        } else {
+            version = mapping.getVersion(job);
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("epoch", mapping.getEpoch());
+        response.put("version", version);
+        response.put("reset", changes == null);
+        response.put("changes", changesJson);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-store");
+        response.write(rsp.getWriter());
+    }
+
+    /**
+     * Looks up the issues linked to a batch of tests. The request body is
+     * {"lookups": [{"job": "name", "testId": "id"}, ...]}, the response has a result for each lookup, in the same
+     * order: {"results": [{"job": "name", "testId": "id", "issueKey": "KEY-1", "error": "..."}]}. issueKey is left out
+     * if the test is not linked, error if the lookup succeeded.
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    @RequirePOST
+    public void doLookup(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        JSONArray lookups = readBatch(req, rsp, "lookups");
+        if (lookups == null) {
+            return;
+        }
+
+        TestToIssueMapping mapping = TestToIssueMapping.getInstance();
+        Map<String, Job> jobs = new HashMap<>();
+        JSONArray results = new JSONArray();
+        for (Object o : lookups) {
+            JSONObject lookup = (JSONObject) o;
+            String jobName = lookup.optString("job", null);
+            String testId = lookup.optString("testId", null);
+            JSONObject result = new JSONObject();
+            result.put("job", jobName);
+            result.put("testId", testId);
+            Job job = jobs.containsKey(jobName) ? jobs.get(jobName) : getJob(jobName);
+            jobs.put(jobName, job);
+            if (job == null || job instanceof MatrixProject) {
+                result.put("error", "Unknown job, configurations of matrix projects are named matrix/configuration");
+            } else if (testId == null) {
+                result.put("error", "Missing testId");
+            } else {
+                result.put("issueKey", mapping.getTestIssueKey(job, testId));
+            }
+            results.add(result);
+        }
+        writeResults(rsp, results);
+    }
+
+    /**
+     * Links and unlinks issues for a batch of tests. The request body is
+     * {"operations": [{"job": "name", "testId": "id", "issueKey": "KEY-1", "action": "link" or "unlink"}, ...]}.
+     * Linking replaces the current link of the test, unlinking is done only if the test is linked to the given issue.
+     * Issue keys are checked against the issue key pattern of each job, then the existence of all the issues is
+     * checked with one search for each 100 keys, and the links of each job are saved in one write. The response has
+     * a result for each operation, in the same order:
+     * {"results": [{"job": "name", "testId": "id", "issueKey": "KEY-1", "action": "link", "changed": true,
+     * "previousIssueKey": "KEY-0", "error": "..."}]}. previousIssueKey is left out if the test was not linked, error if
+     * the operation succeeded. Requires the permission to configure the jobs.
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    @RequirePOST
+    public void doUpdate(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        JSONArray operations = readBatch(req, rsp, "operations");
+        if (operations == null) {
+            return;
+        }
+
+        //check everything that doesn't need Jira first
+        Map<String, Job> jobs = new HashMap<>();
+        List<JSONObject> results = new ArrayList<>(operations.size());
+        Set<String> keysToCheck = new HashSet<>();
+        for (Object o : operations) {
+            JSONObject operation = (JSONObject) o;
+            String jobName = operation.optString("job", null);
+            String testId = operation.optString("testId", null);
+            String issueKey = operation.optString("issueKey", null);
+            String action = operation.optString("action", "link");
+            JSONObject result = new JSONObject();
+            result.put("job", jobName);
+            result.put("testId", testId);
+            result.put("action", action);
+            results.add(result);
+
+            Job job = jobs.containsKey(jobName) ? jobs.get(jobName) : getJob(jobName);
+            jobs.put(jobName, job);
+            AbstractProject project = job != null ? getProject(job) : null;
+            Pattern pattern = project != null ? JobConfigMapping.getInstance().getIssueKeyPattern(project) : null;
+            if (job == null || job instanceof MatrixProject) {
+                result.put("error", "Unknown job, configurations of matrix projects are named matrix/configuration");
+            } else if (pattern == null) {
+                result.put("error", "The job is not configured to report test results to JIRA");
+            } else if (!project.hasPermission(Item.CONFIGURE)) {
+                result.put("error", "Missing the permission to configure the job");
+            } else if (testId == null || issueKey == null) {
+                result.put("error", "Missing testId or issueKey");
+            } else if (!action.equals("link") && !action.equals("unlink")) {
+                result.put("error", "Unknown action, use link or unlink");
+            } else if (!pattern.matcher(issueKey).matches()) {
+                result.put("error", "Not a valid issue key");
+            } else {
+                issueKey = issueKey.toUpperCase(Locale.ENGLISH);
+                result.put("issueKey", issueKey);
+                if (action.equals("link")) {
+                    keysToCheck.add(issueKey);
+                }
+            }
+        }
+
+        Map<String, Issue> issues = new HashMap<>();
+        if (!keysToCheck.isEmpty()) {
+            if (JiraUtils.getJiraDescriptor().getRestClient() == null) {
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "JIRA is not configured");
+                return;
+            }
+            issues = JiraUtils.getIssues(keysToCheck);
+        }
+
+        //group the operations by job, the last operation on a test wins
+        Map<Job, Map<String, JSONObject>> jobOperations = new LinkedHashMap<>();
+        for (JSONObject result : results) {
+            if (result.has("error")) {
+                continue;
+            }
+            String issueKey = result.getString("issueKey");
+            if (result.getString("action").equals("link") && !issues.containsKey(issueKey)) {
+                result.put("error", "The issue does not exist");
+                continue;
+            }
+            Job job = jobs.get(result.getString("job"));
+            Map<String, JSONObject> byTest = jobOperations.get(job);
+            if (byTest == null) {
+                byTest = new LinkedHashMap<>();
+                jobOperations.put(job, byTest);
+            }
+            JSONObject replaced = byTest.put(result.getString("testId"), result);
+            if (replaced != null) {
+                replaced.put("changed", false);
+                replaced.put("error", "Overridden by a later operation on the same test");
+            }
+        }
+
+        TestToIssueMapping mapping = TestToIssueMapping.getInstance();
+        for (Map.Entry<Job, Map<String, JSONObject>> entry : jobOperations.entrySet()) {
+            Job job = entry.getKey();
+            Map<String, String> added = new HashMap<>();
+            Map<String, String> removed = new HashMap<>();
+            for (Map.Entry<String, JSONObject> operation : entry.getValue().entrySet()) {
+                if (operation.getValue().getString("action").equals("link")) {
+                    added.put(operation.getKey(), operation.getValue().getString("issueKey"));
+                } else {
+                    removed.put(operation.getKey(), operation.getValue().getString("issueKey"));
+                }
+            }
+            //the previous links are the ones replaced by the update itself
+            MappingStorage.LinkUpdate update = mapping.updateTestToIssueMappings(job, added, removed);
+            for (Map.Entry<String, String> link : added.entrySet()) {
+                String previousIssueKey = update.getReplaced().get(link.getKey());
+                JSONObject result = entry.getValue().get(link.getKey());
+                result.put("previousIssueKey", previousIssueKey);
+                result.put("changed", !link.getValue().equals(previousIssueKey));
+            }
+            for (Map.Entry<String, String> link : removed.entrySet()) {
+                boolean unlinked = update.getUnlinked().contains(link.getKey());
+                JSONObject result = entry.getValue().get(link.getKey());
+                result.put("previousIssueKey", unlinked ? link.getValue() : mapping.getTestIssueKey(job, link.getKey()));
+                result.put("changed", unlinked);
+            }
+        }
+
+        JSONArray response = new JSONArray();
+        response.addAll(results);
+        writeResults(rsp, response);
+    }
+
+    /**
+     * Reads the array of operations from the JSON body of a batch request
+     * @return the operations, or null if the request is invalid (the error was already sent)
+     */
+    private static JSONArray readBatch(StaplerRequest req, StaplerResponse rsp, String name) throws IOException {
+        JSONArray batch;
+        try {
+            JSONObject body = JSONObject.fromObject(IOUtils.toString(req.getReader()));
+            batch = body.optJSONArray(name);
+        } catch (JSONException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request body must be a JSON object");
+            return null;
+        }
+        if (batch == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request must have a \"" + name + "\" array");
+            return null;
+        }
+        if (batch.size() > MAX_BATCH_SIZE) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "At most " + MAX_BATCH_SIZE + " operations per request");
+            return null;
+        }
+        for (Object o : batch) {
+            if (!(o instanceof JSONObject)) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "\"" + name + "\" must contain only objects");
+                return null;
+            }
+        }
+        return batch;
+    }
+
+    private static void writeResults(StaplerResponse rsp, JSONArray results) throws IOException {
+        JSONObject response = new JSONObject();
+        response.put("results", results);
+        rsp.setContentType("application/json;charset=UTF-8");
+        response.write(rsp.getWriter());
+    }
+
     @Override
     public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
         String jobName = req.getParameter("job");
-        JsonElement result;
 
         if(jobName == null) {
             rsp.getWriter().write("You need to set the \"job\" parameter");
             return;
         }
 
-        //sub job of a matrix project
-        if(jobName.contains("/")) {
-            String matrixJobName = jobName.split("/")[0];
-            String matrixSubJobName = jobName.split("/")[1];
-            MatrixProject matrixProject = (MatrixProject) Jenkins.getActiveInstance().getItem(matrixJobName);
-            if(matrixProject == null) {
-                rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
-                return;
+        //top level job (either matrix, freestyle or maven), or sub job of a matrix project
+        Job job = getJob(jobName);
+        if (job == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        int offset;
+        int limit;
+        try {
+            offset = getIntParameter(req, "offset", 0);
+            limit = getIntParameter(req, "limit", Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset and limit must be positive integers");
+            return;
+        }
+        String after = req.getParameter("after");
+        boolean paged = offset > 0 || limit != Integer.MAX_VALUE || after != null;
+        if (paged && job instanceof MatrixProject) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Pages can only be read for a configuration of a matrix project (job=matrix/configuration)");
+            return;
+        }
+        if (offset > 0 && after != null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Only one of offset and after can be set");
+            return;
+        }
+
+        TestToIssueMapping mapping = TestToIssueMapping.getInstance();
+        long version = mapping.getVersion(job);
+        String eTag = getETag(mapping, job, version);
+        rsp.setHeader("ETag", eTag);
+        rsp.setHeader("X-Mapping-Epoch", String.valueOf(mapping.getEpoch()));
+        rsp.setHeader("X-Mapping-Version", String.valueOf(version));
+        rsp.setHeader("Cache-Control", "private, no-cache");
+        if (eTag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        if (paged) {
+            //read one more link to find out if there is a next page
+            int readLimit = limit == Integer.MAX_VALUE ? limit : limit + 1;
+            SortedMap<String, String> page = after != null ? mapping.getLinksAfter(job, after, readLimit)
+                    : mapping.getLinks(job, offset, readLimit);
+            if (page.size() > limit) {
+                page.remove(page.lastKey());
+                rsp.setHeader("X-Next-Offset", String.valueOf(offset + limit));
+                rsp.setHeader("X-Next-After", page.lastKey());
             }
-            result = TestToIssueMapping.getInstance().getMap(matrixProject, matrixSubJobName);
-        // top level job (either matrix, freestyle or maven
-        } else {
-            Job job = (Job) Jenkins.getActiveInstance().getItem(jobName);
-            if (job == null) {
-                rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
-                return;
+            try (JsonWriter writer = new JsonWriter(rsp.getCompressedWriter(req))) {
+                writer.beginObject();
+                writeLinks(writer, page);
+                writer.endObject();
             }
-            result = TestToIssueMapping.getInstance().getMap(job);
+            return;
         }
 
-        if(result != null) {
-            rsp.setContentType("application/json");
-            rsp.getWriter().write(GSON.toJson(result));
-        } else {
-            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        try (JsonWriter writer = new JsonWriter(rsp.getCompressedWriter(req))) {
+            writer.beginObject();
+            if (job instanceof MatrixProject) {
+                for (Job child : ((MatrixProject) job).getAllJobs()) {
+                    if (child == job)
+                        continue;
+                    writer.name(child.getName());
+                    writer.beginObject();
+                    writeAllLinks(writer, mapping, child);
+                    writer.endObject();
+                }
+            } else {
+                writeAllLinks(writer, mapping, job);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Builds the ETag of the links of a job from the epoch and the version. The version of a matrix project is the
+     * highest version of its configurations, which can go back to a value already sent when a configuration is
+     * removed, so the number and the names of the configurations are part of its ETag.
+     * @param mapping
+     * @param job
+     * @param version the version of the links of the job
+     * @return the quoted ETag
+     */
+    private static String getETag(TestToIssueMapping mapping, Job job, long version) {
+        StringBuilder eTag = new StringBuilder("\"").append(mapping.getEpoch()).append('-').append(version);
+        if (job instanceof MatrixProject) {
+            List<String> names = new ArrayList<>();
+            for (Job child : ((MatrixProject) job).getAllJobs()) {
+                if (child != job) {
+                    names.add(child.getName());
+                }
+            }
+            Collections.sort(names);
+            eTag.append('-').append(names.size()).append('-').append(Integer.toHexString(names.hashCode()));
+        }
+        return eTag.append('"').toString();
+    }
+
+    /**
+     * Writes all the links of a job, reading them a chunk at a time so that only one chunk is held in memory and the
+     * storage is not locked while the response is written
+     */
+    private static void writeAllLinks(JsonWriter writer, TestToIssueMapping mapping, Job job) throws IOException {
+        String after = null;
+        SortedMap<String, String> chunk;
+        do {
+            chunk = mapping.getLinksAfter(job, after, STREAM_CHUNK_SIZE);
+            writeLinks(writer, chunk);
+            writer.flush();
+            after = chunk.isEmpty() ? null : chunk.lastKey();
+        } while (chunk.size() == STREAM_CHUNK_SIZE);
+    }
+
+    private static void writeLinks(JsonWriter writer, Map<String, String> links) throws IOException {
+        for (Map.Entry<String, String> link : links.entrySet()) {
+            writer.name(link.getKey()).value(link.getValue());
+        }
+    }
+
+    private static int getIntParameter(StaplerRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int result = Integer.parseInt(value);
+        if (result < 0 || (result == 0 && name.equals("limit"))) {
+            throw new NumberFormatException(value);
         }
+        return result;
     }
 }
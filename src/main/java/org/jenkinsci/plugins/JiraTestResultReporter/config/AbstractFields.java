@@ -20,8 +20,11 @@ import hudson.EnvVars;
 import hudson.ExtensionPoint;
 import hudson.model.AbstractDescribableImpl;
 import hudson.tasks.test.TestResult;
+import org.jenkinsci.plugins.JiraTestResultReporter.ExpansionContext;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Created by tuicu.
@@ -32,4 +35,40 @@ public abstract class AbstractFields  extends AbstractDescribableImpl<AbstractFi
     public static final long serialVersionUID = 6634175180307435394L;
     public abstract FieldInput getFieldInput(TestResult test, EnvVars envVars);
     public abstract Object readResolve();
+
+    /**
+     * Getter for the FieldInput object, reusing the variable values already computed for the test. Fields with
+     * variables should override this.
+     * @param context the expansion context of the test
+     * @return
+     */
+    public FieldInput getFieldInput(ExpansionContext context) {
+        return getFieldInput(context.getTest(), context.getEnvVars());
+    }
+
+    /**
+     * Getter for the key of the configured field
+     * @return the field key, or null if unknown
+     */
+    public String getFieldKey() {
+        return null;
+    }
+
+    /**
+     * Checks if the FieldInput is the same for all the tests (no variables to expand), so that it can be built
+     * only once for a configuration
+     * @return
+     */
+    public boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * Getter for the texts of this field that can contain variables, used to find the environment variables that
+     * need to be saved with the build
+     * @return
+     */
+    public Collection<String> getTemplates() {
+        return Collections.emptyList();
+    }
 }
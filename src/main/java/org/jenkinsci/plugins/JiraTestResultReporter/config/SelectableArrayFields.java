@@ -15,9 +15,6 @@
  */
 package org.jenkinsci.plugins.JiraTestResultReporter.config;
 
-import com.atlassian.jira.rest.client.api.IdentifiableEntity;
-import com.atlassian.jira.rest.client.api.NamedEntity;
-import com.atlassian.jira.rest.client.api.domain.CustomFieldOption;
 import com.atlassian.jira.rest.client.api.domain.input.ComplexIssueInputFieldValue;
 import com.atlassian.jira.rest.client.api.domain.input.FieldInput;
 import hudson.EnvVars;
@@ -26,12 +23,14 @@ import hudson.RelativePath;
 import hudson.model.Descriptor;
 import hudson.tasks.test.TestResult;
 import hudson.util.ListBoxModel;
+import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraTestDataPublisher;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
+import org.jenkinsci.plugins.JiraTestResultReporter.MetadataCache;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.bind.JavaScriptMethod;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -75,6 +74,11 @@ public class SelectableArrayFields extends AbstractFields {
         return values;
     }
 
+    @Override
+    public boolean isConstant() {
+        return true;
+    }
+
     @Override
     public Object readResolve()  {
         List<ComplexIssueInputFieldValue> valueList = new ArrayList<>();
@@ -130,45 +134,44 @@ public class SelectableArrayFields extends AbstractFields {
         }
 
         /**
-         * Method for filling the selectable with the allowed values
+         * Method for filling the selectable with the allowed values. Only the first values (sorted by name) and
+         * the selected one are listed, the others are found with {@link #searchValues}.
          * @param projectKey
          * @param issueType
          * @param fieldKey
+         * @param selectedValue the configured value
          * @return
          */
         public ListBoxModel doFillValueItems(@QueryParameter @RelativePath("../..") String projectKey,
                                              @QueryParameter @RelativePath("../..") String issueType,
-                                             @QueryParameter @RelativePath("..") String fieldKey) {
-
-            ListBoxModel listBox = new ListBoxModel();
+                                             @QueryParameter @RelativePath("..") String fieldKey,
+                                             @QueryParameter String selectedValue) {
             JiraTestDataPublisher.JiraTestDataPublisherDescriptor jiraDescriptor = JiraUtils.getJiraDescriptor();
             try {
-                Iterable<Object> values = jiraDescriptor.getCacheEntry(projectKey, issueType).getFieldInfoMap().get(fieldKey).getAllowedValues();
-                for (Object o : values) {
-                    if(o instanceof CustomFieldOption) {
-                        CustomFieldOption option = (CustomFieldOption) o;
-                        listBox.add(option.getValue(), option.getId().toString());
-                    } else if (o instanceof IdentifiableEntity && o instanceof NamedEntity) {
-                        listBox.add(((NamedEntity) o).getName(), ((IdentifiableEntity<Long>) o).getId().toString());
-                    //work-around for Components and Fix Versions
-                    // even though they have ids, for some reason they don't implement IdentifiableEntity
-                    // so I'm invoking the getter for the id using reflection
-                    } else if (o instanceof  NamedEntity) {
-                        try {
-                            Method m = o.getClass().getMethod("getId");
-                            Object id = (Long) m.invoke(o, null);
-                            if(id != null) {
-                                listBox.add(((NamedEntity) o).getName(), id.toString());
-                            }
-                        } catch (Exception e) {
-                        }
-                    }
-                }
-                return listBox;
+                return jiraDescriptor.getCacheEntry(projectKey, issueType)
+                        .getAllowedValuesBox(fieldKey, selectedValue, MetadataCache.MAX_LISTED_VALUES);
             }
             catch (NullPointerException e) {
-                return listBox;
+                return new ListBoxModel();
             }
         }
+
+        /**
+         * Searches the allowed values with the name starting with a prefix, called by the filter next to the
+         * selectable. Only users allowed to configure the job get an answer.
+         * @param jobName the full name of the job being configured
+         * @param projectKey
+         * @param issueType
+         * @param fieldKey
+         * @param prefix
+         * @param offset the index of the first match to return
+         * @return a page of values, with the total number of matches
+         */
+        @JavaScriptMethod
+        public JSONObject searchValues(String jobName, String projectKey, String issueType, String fieldKey,
+                                       String prefix, int offset) {
+            return JiraUtils.getJiraDescriptor().searchAllowedValues(jobName, projectKey, issueType, fieldKey, prefix,
+                    offset);
+        }
     }
 }
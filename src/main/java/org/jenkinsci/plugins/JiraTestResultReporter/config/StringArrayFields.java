@@ -22,6 +22,7 @@ import hudson.RelativePath;
 import hudson.model.Descriptor;
 import hudson.tasks.test.TestResult;
 import hudson.util.ListBoxModel;
+import org.jenkinsci.plugins.JiraTestResultReporter.ExpansionContext;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraTestDataPublisher;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
 import org.jenkinsci.plugins.JiraTestResultReporter.VariableExpander;
@@ -29,6 +30,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -86,6 +88,39 @@ public class StringArrayFields extends AbstractFields {
         return fieldInput;
     }
 
+    /**
+     * Getter for the FieldInput object
+     * @param context
+     * @return
+     */
+    @Override
+    public FieldInput getFieldInput(ExpansionContext context) {
+        List<String> stringList = new ArrayList<>(values.size());
+        for(Entry v : values) {
+            stringList.add(VariableExpander.expandVariables(context, v.getValue()));
+        }
+        return new FieldInput(fieldKey, stringList);
+    }
+
+
+    @Override
+    public boolean isConstant() {
+        for(Entry v : values) {
+            if(VariableExpander.hasVariables(v.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<String> getTemplates() {
+        List<String> templates = new ArrayList<>(values.size());
+        for(Entry v : values) {
+            templates.add(v.getValue());
+        }
+        return templates;
+    }
 
     @Override
     public Object readResolve() {
@@ -22,12 +22,16 @@ import hudson.RelativePath;
 import hudson.model.Descriptor;
 import hudson.tasks.test.TestResult;
 import hudson.util.ListBoxModel;
+import org.jenkinsci.plugins.JiraTestResultReporter.ExpansionContext;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraTestDataPublisher.JiraTestDataPublisherDescriptor;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
 import org.jenkinsci.plugins.JiraTestResultReporter.VariableExpander;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Created by tuicu.
  * Class for fields that accept single string values
@@ -84,7 +88,27 @@ public class StringFields extends AbstractFields {
         FieldInput fieldInput = new FieldInput(fieldKey, VariableExpander.expandVariables(test, envVars,value));
         return fieldInput;
     }
+
+    /**
+     * Getter for the FieldInput object
+     * @param context
+     * @return
+     */
+    @Override
+    public FieldInput getFieldInput(ExpansionContext context) {
+        return new FieldInput(fieldKey, VariableExpander.expandVariables(context, value));
+    }
     
+    @Override
+    public boolean isConstant() {
+        return !VariableExpander.hasVariables(value);
+    }
+
+    @Override
+    public Collection<String> getTemplates() {
+        return value != null ? Collections.singletonList(value) : Collections.<String>emptyList();
+    }
+
     @Override
     public Object readResolve() {
         return this;
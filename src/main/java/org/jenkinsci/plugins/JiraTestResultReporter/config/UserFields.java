@@ -13,6 +13,7 @@ import hudson.tasks.test.TestResult;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import org.codehaus.plexus.util.StringUtils;
+import org.jenkinsci.plugins.JiraTestResultReporter.JiraMetrics;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraTestDataPublisher;
 import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -36,7 +37,8 @@ public class UserFields extends AbstractFields {
     public UserFields(String fieldKey, String value) {
         this.fieldKey = fieldKey;
         this.value = value;
-        this.user = JiraUtils.getJiraDescriptor().getRestClient().getUserClient().getUser(value).claim();
+        this.user = JiraMetrics.claim(JiraMetrics.GET_USER,
+                JiraUtils.getJiraDescriptor().getRestClient().getUserClient().getUser(value));
     }
 
     /**
@@ -51,9 +53,15 @@ public class UserFields extends AbstractFields {
     }
 
 
+    @Override
+    public boolean isConstant() {
+        return true;
+    }
+
     @Override
     public Object readResolve() {
-        this.user = JiraUtils.getJiraDescriptor().getRestClient().getUserClient().getUser(value).claim();
+        this.user = JiraMetrics.claim(JiraMetrics.GET_USER,
+                JiraUtils.getJiraDescriptor().getRestClient().getUserClient().getUser(value));
         return this;
     }
 
@@ -105,7 +113,7 @@ public class UserFields extends AbstractFields {
 
             UserRestClient userRestClient = JiraUtils.getJiraDescriptor().getRestClient().getUserClient();
             try {
-                User user = userRestClient.getUser(value).claim();
+                User user = JiraMetrics.claim(JiraMetrics.GET_USER, userRestClient.getUser(value));
                 return FormValidation.ok();
             } catch (RestClientException e) {
                 return FormValidation.error(JiraUtils.getErrorMessage(e, "\n"));
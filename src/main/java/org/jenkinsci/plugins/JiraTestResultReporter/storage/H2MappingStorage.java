@@ -0,0 +1,519 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter.storage;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Storage backed by an embedded H2 database, found in ${JENKINS_HOME}/JiraTestResultReporter/mappings.
+ * Links are indexed by (job, test id) and by issue key, and nothing is kept in memory, so the heap footprint
+ * does not depend on the number of links. Every operation runs in its own transaction.
+ * The first time a job is registered, its JSON map (if any) is imported. The connections are closed when Jenkins
+ * shuts down.
+ */
+@Extension
+public class H2MappingStorage extends MappingStorage {
+    public static final String ID = "h2";
+    private static final String DB_DIR = "JiraTestResultReporter";
+    private static final String DB_NAME = "mappings";
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS JOBS (JOB VARCHAR NOT NULL PRIMARY KEY, " +
+                    "IMPORTED BOOLEAN DEFAULT FALSE NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS LINKS (JOB VARCHAR NOT NULL, TEST_ID VARCHAR NOT NULL, " +
+                    "ISSUE_KEY VARCHAR NOT NULL, LAST_BUILD INT NOT NULL, LAST_SEEN BIGINT NOT NULL, " +
+                    "PRIMARY KEY (JOB, TEST_ID))",
+            "CREATE INDEX IF NOT EXISTS LINKS_ISSUE_KEY ON LINKS (ISSUE_KEY)"
+    };
+
+    /**
+     * Condition matching a job and all the jobs nested under it. Nested jobs are named "job/...", and '0' is
+     * the character right after '/', so the range uses the primary key index.
+     */
+    private static final String JOB_OR_NESTED = "(JOB = ? OR (JOB >= ? AND JOB < ?))";
+
+    private JdbcConnectionPool pool;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    /**
+     * Getter for the connection pool, creates the database on first use
+     * @return
+     * @throws SQLException
+     */
+    private synchronized JdbcConnectionPool getPool() throws SQLException {
+        if (pool == null) {
+            File dir = new File(Jenkins.getInstance().getRootDir(), DB_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new SQLException("Could not create directory " + dir);
+            }
+            String url = "jdbc:h2:" + new File(dir, DB_NAME).getAbsolutePath();
+            JdbcConnectionPool newPool = JdbcConnectionPool.create(url, "", "");
+            try (Connection connection = newPool.getConnection();
+                    Statement statement = connection.createStatement()) {
+                for (String ddl : SCHEMA) {
+                    statement.execute(ddl);
+                }
+            }
+            pool = newPool;
+        }
+        return pool;
+    }
+
+    /**
+     * Opens a connection with auto commit disabled, the caller is responsible for committing
+     * @return
+     * @throws SQLException
+     */
+    private Connection openTransaction() throws SQLException {
+        Connection connection = getPool().getConnection();
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            JiraUtils.logWarning("WARNING: Could not roll back transaction", e);
+        }
+    }
+
+    private static void bindJobOrNested(PreparedStatement statement, int index, String fullName)
+            throws SQLException {
+        statement.setString(index, fullName);
+        statement.setString(index + 1, fullName + "/");
+        statement.setString(index + 2, fullName + "0");
+    }
+
+    /**
+     * Closes the connections to the database when Jenkins shuts down
+     */
+    @Terminator
+    public static void closeDatabase() {
+        Jenkins jenkins = Jenkins.getInstance();
+        H2MappingStorage storage = jenkins != null
+                ? jenkins.getExtensionList(MappingStorage.class).get(H2MappingStorage.class) : null;
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    private synchronized void close() {
+        if (pool != null) {
+            pool.dispose();
+            pool = null;
+        }
+    }
+
+    /**
+     * The row of the job is merged and then locked, so concurrent registrations of the same job wait for each other
+     * and the JSON map is imported only once.
+     */
+    @Override
+    public void register(Job job) {
+        try (Connection connection = openTransaction()) {
+            try {
+                try (PreparedStatement merge = connection.prepareStatement("MERGE INTO JOBS (JOB) KEY (JOB) VALUES (?)")) {
+                    merge.setString(1, job.getFullName());
+                    merge.executeUpdate();
+                }
+                try (PreparedStatement select = connection.prepareStatement(
+                        "SELECT IMPORTED FROM JOBS WHERE JOB = ? FOR UPDATE")) {
+                    select.setString(1, job.getFullName());
+                    try (ResultSet rs = select.executeQuery()) {
+                        if (rs.next() && rs.getBoolean(1)) {
+                            connection.commit();
+                            return;
+                        }
+                    }
+                }
+                try (PreparedStatement update = connection.prepareStatement(
+                        "UPDATE JOBS SET IMPORTED = TRUE WHERE JOB = ?")) {
+                    update.setString(1, job.getFullName());
+                    update.executeUpdate();
+                }
+
+                if (JsonMappingStorage.hasMapFile(job)) {
+                    Map<String, String> links = JsonMappingStorage.loadMap(job);
+                    Map<String, JsonMappingStorage.LastSeen> lastSeen = JsonMappingStorage.loadLastSeen(job, links);
+                    try (PreparedStatement merge = connection.prepareStatement("MERGE INTO LINKS VALUES (?, ?, ?, ?, ?)")) {
+                        for (Map.Entry<String, String> link : links.entrySet()) {
+                            JsonMappingStorage.LastSeen seen = lastSeen.get(link.getKey());
+                            merge.setString(1, job.getFullName());
+                            merge.setString(2, link.getKey());
+                            merge.setString(3, link.getValue());
+                            merge.setInt(4, seen.getBuild());
+                            merge.setLong(5, seen.getTime());
+                            merge.addBatch();
+                        }
+                        merge.executeBatch();
+                    }
+                    JiraUtils.log("Imported " + links.size() + " links for job " + job.getFullName());
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not register job " + job.getFullName(), e);
+        }
+    }
+
+    @Override
+    public void unregister(String fullName) {
+        try (Connection connection = openTransaction()) {
+            try {
+                for (String table : new String[] {"LINKS", "JOBS"}) {
+                    try (PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM " + table + " WHERE " + JOB_OR_NESTED)) {
+                        bindJobOrNested(delete, 1, fullName);
+                        delete.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not unregister job " + fullName, e);
+        }
+    }
+
+    @Override
+    public void rename(String oldFullName, String newFullName) {
+        try (Connection connection = openTransaction()) {
+            try {
+                for (String table : new String[] {"LINKS", "JOBS"}) {
+                    try (PreparedStatement update = connection.prepareStatement(
+                            "UPDATE " + table + " SET JOB = CONCAT(?, SUBSTRING(JOB, ?)) WHERE " + JOB_OR_NESTED)) {
+                        update.setString(1, newFullName);
+                        update.setInt(2, oldFullName.length() + 1);
+                        bindJobOrNested(update, 3, oldFullName);
+                        update.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not rename job " + oldFullName, e);
+        }
+    }
+
+    @Override
+    public String getIssueKey(Job job, String testId) {
+        try (Connection connection = getPool().getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT ISSUE_KEY FROM LINKS WHERE JOB = ? AND TEST_ID = ?")) {
+            select.setString(1, job.getFullName());
+            select.setString(2, testId);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not query link for job " + job.getFullName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public List<String> getTestIds(Job job, String issueKey) {
+        List<String> testIds = new ArrayList<>();
+        try (Connection connection = getPool().getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT TEST_ID FROM LINKS WHERE ISSUE_KEY = ? AND JOB = ?")) {
+            select.setString(1, issueKey);
+            select.setString(2, job.getFullName());
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    testIds.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not query links for issue " + issueKey, e);
+        }
+        return testIds;
+    }
+
+    @Override
+    public Map<String, String> getLinks(Job job) {
+        Map<String, String> links = new HashMap<>();
+        try (Connection connection = getPool().getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT TEST_ID, ISSUE_KEY FROM LINKS WHERE JOB = ?")) {
+            select.setString(1, job.getFullName());
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    links.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not query links for job " + job.getFullName(), e);
+        }
+        return links;
+    }
+
+    @Override
+    public SortedMap<String, String> getLinks(Job job, int offset, int limit) {
+        SortedMap<String, String> links = new TreeMap<>();
+        try (Connection connection = getPool().getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT TEST_ID, ISSUE_KEY FROM LINKS WHERE JOB = ? ORDER BY TEST_ID " +
+                                "OFFSET ? ROWS FETCH NEXT ? ROWS ONLY")) {
+            select.setString(1, job.getFullName());
+            select.setInt(2, offset);
+            select.setInt(3, limit);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    links.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not query links for job " + job.getFullName(), e);
+        }
+        return links;
+    }
+
+    @Override
+    public SortedMap<String, String> getLinksAfter(Job job, String after, int limit) {
+        SortedMap<String, String> links = new TreeMap<>();
+        try (Connection connection = getPool().getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT TEST_ID, ISSUE_KEY FROM LINKS WHERE JOB = ? AND TEST_ID > ? ORDER BY TEST_ID " +
+                                "FETCH NEXT ? ROWS ONLY")) {
+            select.setString(1, job.getFullName());
+            select.setString(2, after != null ? after : "");
+            select.setInt(3, limit);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    links.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not query links for job " + job.getFullName(), e);
+        }
+        return links;
+    }
+
+    /**
+     * Locks the row of a job until the end of the transaction, so the writes to the links of a job are serialized
+     * and each of them reads the links left by the previous one
+     * @param connection
+     * @param job
+     * @throws SQLException
+     */
+    private static void lockJob(Connection connection, Job job) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement("SELECT JOB FROM JOBS WHERE JOB = ? FOR UPDATE")) {
+            select.setString(1, job.getFullName());
+            select.executeQuery().close();
+        }
+    }
+
+    private static String selectIssueKey(PreparedStatement select, Job job, String testId) throws SQLException {
+        select.setString(1, job.getFullName());
+        select.setString(2, testId);
+        try (ResultSet rs = select.executeQuery()) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    @Override
+    public String addLink(Job job, String testId, String issueKey, int buildNumber, long time) {
+        try (Connection connection = openTransaction()) {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT ISSUE_KEY FROM LINKS WHERE JOB = ? AND TEST_ID = ?");
+                    PreparedStatement merge = connection.prepareStatement("MERGE INTO LINKS VALUES (?, ?, ?, ?, ?)")) {
+                lockJob(connection, job);
+                String previousIssueKey = selectIssueKey(select, job, testId);
+                merge.setString(1, job.getFullName());
+                merge.setString(2, testId);
+                merge.setString(3, issueKey);
+                merge.setInt(4, buildNumber);
+                merge.setLong(5, time);
+                merge.executeUpdate();
+                connection.commit();
+                return previousIssueKey;
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not save link for job " + job.getFullName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean removeLink(Job job, String testId, String issueKey) {
+        try (Connection connection = openTransaction()) {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM LINKS WHERE JOB = ? AND TEST_ID = ? AND ISSUE_KEY = ?")) {
+                delete.setString(1, job.getFullName());
+                delete.setString(2, testId);
+                delete.setString(3, issueKey);
+                boolean removed = delete.executeUpdate() > 0;
+                connection.commit();
+                return removed;
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not remove link for job " + job.getFullName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Links and unlinks in one transaction.
+     */
+    @Override
+    public LinkUpdate updateLinks(Job job, Map<String, String> added, Map<String, String> removed,
+                                  int buildNumber, long time) {
+        Map<String, String> replaced = new HashMap<>();
+        Set<String> unlinked = new HashSet<>();
+        try (Connection connection = openTransaction()) {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT ISSUE_KEY FROM LINKS WHERE JOB = ? AND TEST_ID = ?");
+                    PreparedStatement merge = connection.prepareStatement("MERGE INTO LINKS VALUES (?, ?, ?, ?, ?)");
+                    PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM LINKS WHERE JOB = ? AND TEST_ID = ? AND ISSUE_KEY = ?")) {
+                lockJob(connection, job);
+                for (Map.Entry<String, String> link : added.entrySet()) {
+                    replaced.put(link.getKey(), selectIssueKey(select, job, link.getKey()));
+                    merge.setString(1, job.getFullName());
+                    merge.setString(2, link.getKey());
+                    merge.setString(3, link.getValue());
+                    merge.setInt(4, buildNumber);
+                    merge.setLong(5, time);
+                    merge.addBatch();
+                }
+                merge.executeBatch();
+                for (Map.Entry<String, String> link : removed.entrySet()) {
+                    delete.setString(1, job.getFullName());
+                    delete.setString(2, link.getKey());
+                    delete.setString(3, link.getValue());
+                    if (delete.executeUpdate() > 0) {
+                        unlinked.add(link.getKey());
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not save links for job " + job.getFullName(), e);
+            return new LinkUpdate(new HashMap<String, String>(), new HashSet<String>());
+        }
+        return new LinkUpdate(replaced, unlinked);
+    }
+
+    @Override
+    public void markSeen(Job job, Collection<String> testIds, int buildNumber, long time) {
+        try (Connection connection = openTransaction()) {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE LINKS SET LAST_BUILD = ?, LAST_SEEN = ? WHERE JOB = ? AND TEST_ID = ?")) {
+                for (String testId : testIds) {
+                    update.setInt(1, buildNumber);
+                    update.setLong(2, time);
+                    update.setString(3, job.getFullName());
+                    update.setString(4, testId);
+                    update.addBatch();
+                }
+                update.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not update last seen for job " + job.getFullName(), e);
+        }
+    }
+
+    @Override
+    public Map<String, String> evictStaleLinks(Job job, int minBuild, long minTime) {
+        Map<String, String> evicted = new HashMap<>();
+        String condition = " WHERE JOB = ? AND ((? > 0 AND LAST_BUILD < ?) OR (? > 0 AND LAST_SEEN < ?))";
+        try (Connection connection = openTransaction()) {
+            try {
+                lockJob(connection, job);
+                try (PreparedStatement select = connection.prepareStatement(
+                        "SELECT TEST_ID, ISSUE_KEY FROM LINKS" + condition + " FOR UPDATE")) {
+                    bindStaleCondition(select, job, minBuild, minTime);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            evicted.put(rs.getString(1), rs.getString(2));
+                        }
+                    }
+                }
+                if (!evicted.isEmpty()) {
+                    try (PreparedStatement delete = connection.prepareStatement("DELETE FROM LINKS" + condition)) {
+                        bindStaleCondition(delete, job, minBuild, minTime);
+                        delete.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            JiraUtils.logError("ERROR: Could not evict stale links for job " + job.getFullName(), e);
+            evicted.clear();
+        }
+        return evicted;
+    }
+
+    private static void bindStaleCondition(PreparedStatement statement, Job job, int minBuild, long minTime)
+            throws SQLException {
+        statement.setString(1, job.getFullName());
+        statement.setInt(2, minBuild);
+        statement.setInt(3, minBuild);
+        statement.setLong(4, minTime);
+        statement.setLong(5, minTime);
+    }
+}
@@ -0,0 +1,538 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import hudson.Extension;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.JiraTestResultReporter.JiraUtils;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default storage. It has a large map from job names to smaller maps that store the actual links from tests
+ * to issue keys. Each time a change is made to a small map (add/remove a mapping from a test to a issue), only that
+ * small map gets serialized. The file can be found in ${JENKINS_HOME}/job/${JOB_NAME}/JiraIssueKeyToTestMap.json
+ * For each link, the build number and time when the test was last seen in a report are kept in a separate file,
+ * ${JENKINS_HOME}/job/${JOB_NAME}/JiraIssueKeyToTestMap.lastSeen.json
+ */
+@Extension
+public class JsonMappingStorage extends MappingStorage {
+    public static final String ID = "json";
+    private static final Gson GSON = new Gson();
+    private static final String MAP_FILE_NAME = "JiraIssueKeyToTestMap";
+    private static final String LAST_SEEN_FILE_NAME = MAP_FILE_NAME + ".lastSeen";
+    private static final Type LAST_SEEN_TYPE = new TypeToken<HashMap<String, LastSeen>>(){}.getType();
+
+    /**
+     * The build number and the time when a linked test was last seen in a test report
+     */
+    static class LastSeen {
+        private final int build;
+        private final long time;
+
+        public LastSeen(int build, long time) {
+            this.build = build;
+            this.time = time;
+        }
+
+        public int getBuild() { return build; }
+
+        public long getTime() { return time; }
+
+        /**
+         * Checks if the test was not seen since the given build number or time
+         * @param minBuild links last seen in an older build are stale, ignored if 0 or less
+         * @param minTime links last seen before this time are stale, ignored if 0 or less
+         * @return
+         */
+        public boolean isStale(int minBuild, long minTime) {
+            return (minBuild > 0 && build < minBuild) || (minTime > 0 && time < minTime);
+        }
+    }
+
+    /**
+     * The links of a job, together with the information about when each linked test was last seen. The links are
+     * kept sorted by test id, so pages of links are read without sorting.
+     */
+    private static class JobMap {
+        private final TreeMap<String, String> links;
+        private final Map<String, LastSeen> lastSeen;
+
+        public JobMap(Map<String, String> links, Map<String, LastSeen> lastSeen) {
+            this.links = new TreeMap<>(links);
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final Map<String, JobMap> jobsMap = new ConcurrentHashMap<>();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    /**
+     * Method for saving the test to issue HashMap for the job
+     * @param job
+     * @param map
+     */
+    private void saveMap(Job job, Map<String, String> map) {
+        try {
+            Gson gson = new Gson();
+            try (FileOutputStream fileOut = new FileOutputStream(getPathToFileMap(job) + ".json");
+                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(fileOut, "UTF-8")))
+            {
+                writer.setIndent("  ");
+                gson.toJson(map, Map.class, writer);
+            }
+        }
+        catch (JsonIOException | IOException e) {
+            JiraUtils.logError("ERROR: Could not save job map", e);
+        }
+    }
+
+    /**
+     * Method for saving the last seen information of the links of a job
+     * @param job
+     * @param lastSeen
+     */
+    private void saveLastSeen(Job job, Map<String, LastSeen> lastSeen) {
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(getPathToLastSeenFile(job));
+                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(fileOut, "UTF-8")))
+            {
+                GSON.toJson(lastSeen, LAST_SEEN_TYPE, writer);
+            }
+        }
+        catch (JsonIOException | IOException e) {
+            JiraUtils.logError("ERROR: Could not save last seen map", e);
+        }
+    }
+
+    /**
+     * Method for saving both files of a job
+     * @param job
+     * @param jobMap
+     */
+    private void saveJobMap(Job job, JobMap jobMap) {
+        saveMap(job, jobMap.links);
+        saveLastSeen(job, jobMap.lastSeen);
+    }
+
+    /**
+     * Method for constructing the path to the file map given a job object
+     * @param job
+     * @return
+     */
+    private static String getPathToFileMap(Job job) {
+        return job.getRootDir().toPath().resolve(MAP_FILE_NAME).toString();
+    }
+
+    /**
+     * Method for constructing the path to the last seen file given a job object
+     * @param job
+     * @return
+     */
+    private static String getPathToLastSeenFile(Job job) {
+        return job.getRootDir().toPath().resolve(LAST_SEEN_FILE_NAME).toString() + ".json";
+    }
+
+    /**
+     * Checks if there is a map file saved for the job, by this or by a previous version of the plugin
+     * @param job
+     * @return
+     */
+    static boolean hasMapFile(Job job) {
+        return new File(getPathToFileMap(job) + ".json").exists() || new File(getPathToFileMap(job)).exists();
+    }
+
+    /**
+     * Looks for the issue map from a previous version of the plugin and tries to load it
+     * and save it in the new format
+     * @param job
+     * @return the loaded test to issue HashMap, or null if there was no file, or it could not be loaded
+     */
+    private static Map<String, String> loadBackwardsCompatible(Job job) {
+        try {
+            Map<String, String> testToIssue;
+            try (FileInputStream fileIn = new FileInputStream(getPathToFileMap(job));
+                    ObjectInputStream in = new ObjectInputStream(fileIn))
+            {
+                testToIssue = (HashMap<String, String>) in.readObject();
+                JiraUtils.log("Found and successfully loaded issue map from a previous version for job: "
+                        + job.getFullName());
+            }
+            return testToIssue;
+        } catch (FileNotFoundException e) {
+            JiraUtils.logError(e.getMessage(), e);
+        } catch (Exception e) {
+            JiraUtils.logError("ERROR: Found issue map from a previous version, but was unable to load it for job "
+                    + job.getFullName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Loads the test to issue HashMap from the file associated with the project
+     * @param job
+     * @return the loaded test to issue HashMap
+     */
+    static Map<String, String> loadMap(Job job) {
+        Map<String, String> testToIssue = null;
+        try {
+            Gson gson = new Gson();
+            try (FileInputStream fileIn = new FileInputStream(getPathToFileMap(job) + ".json");
+                    JsonReader reader = new JsonReader(new InputStreamReader(fileIn, "UTF-8")))
+            {
+                
+                testToIssue = gson.fromJson(reader, HashMap.class);
+            }
+            return testToIssue;
+        } catch (FileNotFoundException e) {
+            testToIssue = loadBackwardsCompatible(job);
+            if(testToIssue == null) {
+                JiraUtils.log("No map found for job " + job.getFullName());
+            } else {
+                return testToIssue;
+            }
+        } catch (Exception e) {
+            JiraUtils.logError("ERROR: Could not load map for job " + job.getFullName(), e);
+            e.printStackTrace();
+        }
+
+        return new HashMap<>();
+    }
+
+    /**
+     * Loads the last seen information of the links of a job. Links without this information (ex. maps saved by
+     * previous versions of the plugin) are considered seen now, so they don't get evicted right away.
+     * @param job
+     * @param links the loaded links of the job
+     * @return the loaded last seen map
+     */
+    static Map<String, LastSeen> loadLastSeen(Job job, Map<String, String> links) {
+        Map<String, LastSeen> lastSeen = null;
+        try (FileInputStream fileIn = new FileInputStream(getPathToLastSeenFile(job));
+                JsonReader reader = new JsonReader(new InputStreamReader(fileIn, "UTF-8")))
+        {
+            lastSeen = GSON.fromJson(reader, LAST_SEEN_TYPE);
+        } catch (FileNotFoundException e) {
+            //Nothing to do, first run with this version of the plugin
+        } catch (Exception e) {
+            JiraUtils.logError("ERROR: Could not load last seen map for job " + job.getFullName(), e);
+        }
+
+        if (lastSeen == null) {
+            lastSeen = new HashMap<>();
+        }
+        LastSeen now = new LastSeen(getLastBuildNumber(job), System.currentTimeMillis());
+        for (String testId : links.keySet()) {
+            if (!lastSeen.containsKey(testId)) {
+                lastSeen.put(testId, now);
+            }
+        }
+        lastSeen.keySet().retainAll(links.keySet());
+        return lastSeen;
+    }
+
+    /**
+     * Getter for the map of a job, registers the job if it was not registered before
+     * @param job
+     * @return
+     */
+    private JobMap getJobMap(Job job) {
+        JobMap jobMap = jobsMap.get(job.getFullName());
+        if(jobMap == null) {
+            JiraUtils.logWarning("WARNING: Unregistered job " + job.getFullName());
+            register(job);
+            jobMap = jobsMap.get(job.getFullName());
+        }
+        return jobMap;
+    }
+
+    @Override
+    public void register(Job job) {
+        if(jobsMap.containsKey(job.getFullName()))
+            return;
+
+        synchronized(jobsMap) {
+            if(jobsMap.containsKey(job.getFullName()))
+                return;
+
+            boolean backwardsCompatible = !new File(getPathToFileMap(job) + ".json").exists();
+            Map<String, String> links = loadMap(job);
+            JobMap jobMap = new JobMap(links, loadLastSeen(job, links));
+            if (backwardsCompatible && !links.isEmpty()) {
+                //make sure we have the map from previous versions in the new format
+                saveJobMap(job, jobMap);
+            }
+            jobsMap.put(job.getFullName(), jobMap);
+        }
+    }
+
+    @Override
+    public void unregister(String fullName) {
+        synchronized (jobsMap) {
+            Iterator<String> it = jobsMap.keySet().iterator();
+            while (it.hasNext()) {
+                if (JiraUtils.isSameOrNestedName(it.next(), fullName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The maps are saved again in the new job directory, so that the links are kept even if the files were
+     * left behind.
+     * @param oldFullName
+     * @param newFullName
+     */
+    @Override
+    public void rename(String oldFullName, String newFullName) {
+        Map<String, JobMap> moved = new HashMap<>();
+        synchronized (jobsMap) {
+            Iterator<Map.Entry<String, JobMap>> it = jobsMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, JobMap> entry = it.next();
+                if (JiraUtils.isSameOrNestedName(entry.getKey(), oldFullName)) {
+                    moved.put(newFullName + entry.getKey().substring(oldFullName.length()), entry.getValue());
+                    it.remove();
+                }
+            }
+            jobsMap.putAll(moved);
+        }
+
+        for (Map.Entry<String, JobMap> entry : moved.entrySet()) {
+            Job job = Jenkins.getInstance().getItemByFullName(entry.getKey(), Job.class);
+            if (job == null) {
+                continue;
+            }
+            synchronized (entry.getValue()) {
+                saveJobMap(job, entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public String getIssueKey(Job job, String testId) {
+        JobMap jobMap = getJobMap(job);
+        return jobMap != null ? jobMap.links.get(testId) : null;
+    }
+
+    @Override
+    public List<String> getTestIds(Job job, String issueKey) {
+        List<String> testIds = new ArrayList<>();
+        JobMap jobMap = getJobMap(job);
+        if (jobMap == null) {
+            return testIds;
+        }
+        synchronized (jobMap) {
+            for (Map.Entry<String, String> link : jobMap.links.entrySet()) {
+                if (link.getValue().equals(issueKey)) {
+                    testIds.add(link.getKey());
+                }
+            }
+        }
+        return testIds;
+    }
+
+    @Override
+    public Map<String, String> getLinks(Job job) {
+        JobMap jobMap = jobsMap.get(job.getFullName());
+        if (jobMap == null) {
+            return new HashMap<>();
+        }
+        synchronized (jobMap) {
+            return new HashMap<>(jobMap.links);
+        }
+    }
+
+    @Override
+    public SortedMap<String, String> getLinks(Job job, int offset, int limit) {
+        SortedMap<String, String> page = new TreeMap<>();
+        JobMap jobMap = jobsMap.get(job.getFullName());
+        if (jobMap == null) {
+            return page;
+        }
+        synchronized (jobMap) {
+            Iterator<Map.Entry<String, String>> it = jobMap.links.entrySet().iterator();
+            for (int skipped = 0; skipped < offset && it.hasNext(); skipped++) {
+                it.next();
+            }
+            while (it.hasNext() && page.size() < limit) {
+                Map.Entry<String, String> link = it.next();
+                page.put(link.getKey(), link.getValue());
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public SortedMap<String, String> getLinksAfter(Job job, String after, int limit) {
+        SortedMap<String, String> page = new TreeMap<>();
+        JobMap jobMap = jobsMap.get(job.getFullName());
+        if (jobMap == null) {
+            return page;
+        }
+        synchronized (jobMap) {
+            Map<String, String> links = after != null ? jobMap.links.tailMap(after, false) : jobMap.links;
+            for (Map.Entry<String, String> link : links.entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.put(link.getKey(), link.getValue());
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public String addLink(Job job, String testId, String issueKey, int buildNumber, long time) {
+        JobMap jobMap = getJobMap(job);
+
+        synchronized (jobMap) {
+            String previousIssueKey = jobMap.links.put(testId, issueKey);
+            jobMap.lastSeen.put(testId, new LastSeen(buildNumber, time));
+            saveJobMap(job, jobMap);
+            return previousIssueKey;
+        }
+    }
+
+    @Override
+    public boolean removeLink(Job job, String testId, String issueKey) {
+        JobMap jobMap = jobsMap.get(job.getFullName());
+        if(jobMap == null) {
+            JiraUtils.logError("ERROR: Unregistered job " + job.getFullName());
+            return false;
+        }
+
+        synchronized (jobMap) {
+            if(issueKey != null && issueKey.equals(jobMap.links.get(testId))) {
+                jobMap.links.remove(testId);
+                jobMap.lastSeen.remove(testId);
+                saveJobMap(job, jobMap);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The map is written once per call.
+     */
+    @Override
+    public LinkUpdate updateLinks(Job job, Map<String, String> added, Map<String, String> removed,
+                                  int buildNumber, long time) {
+        Map<String, String> replaced = new HashMap<>();
+        Set<String> unlinked = new HashSet<>();
+        JobMap jobMap = getJobMap(job);
+        if (jobMap == null) {
+            return new LinkUpdate(replaced, unlinked);
+        }
+
+        LastSeen seen = new LastSeen(buildNumber, time);
+        synchronized (jobMap) {
+            for (Map.Entry<String, String> link : added.entrySet()) {
+                replaced.put(link.getKey(), jobMap.links.put(link.getKey(), link.getValue()));
+                jobMap.lastSeen.put(link.getKey(), seen);
+            }
+            for (Map.Entry<String, String> link : removed.entrySet()) {
+                if (link.getValue() != null && link.getValue().equals(jobMap.links.get(link.getKey()))) {
+                    jobMap.links.remove(link.getKey());
+                    jobMap.lastSeen.remove(link.getKey());
+                    unlinked.add(link.getKey());
+                }
+            }
+            if (!added.isEmpty() || !unlinked.isEmpty()) {
+                saveJobMap(job, jobMap);
+            }
+        }
+        return new LinkUpdate(replaced, unlinked);
+    }
+
+    /**
+     * The last seen file is written once per call.
+     */
+    @Override
+    public void markSeen(Job job, Collection<String> testIds, int buildNumber, long time) {
+        JobMap jobMap = getJobMap(job);
+        if (jobMap == null) {
+            return;
+        }
+
+        LastSeen seen = new LastSeen(buildNumber, time);
+        synchronized (jobMap) {
+            if (jobMap.links.isEmpty()) {
+                return;
+            }
+            boolean changed = false;
+            for (String testId : testIds) {
+                if (jobMap.links.containsKey(testId)) {
+                    jobMap.lastSeen.put(testId, seen);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                saveLastSeen(job, jobMap.lastSeen);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, String> evictStaleLinks(Job job, int minBuild, long minTime) {
+        Map<String, String> evicted = new HashMap<>();
+        JobMap jobMap = getJobMap(job);
+        if (jobMap == null) {
+            return evicted;
+        }
+
+        synchronized (jobMap) {
+            Iterator<Map.Entry<String, String>> it = jobMap.links.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> link = it.next();
+                LastSeen seen = jobMap.lastSeen.get(link.getKey());
+                if (seen != null && seen.isStale(minBuild, minTime)) {
+                    evicted.put(link.getKey(), link.getValue());
+                    it.remove();
+                    jobMap.lastSeen.remove(link.getKey());
+                }
+            }
+            if (!evicted.isEmpty()) {
+                saveJobMap(job, jobMap);
+            }
+        }
+        return evicted;
+    }
+}
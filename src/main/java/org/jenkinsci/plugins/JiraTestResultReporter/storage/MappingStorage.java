@@ -0,0 +1,253 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter.storage;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Storage for the links from tests to issues, used by
+ * {@link org.jenkinsci.plugins.JiraTestResultReporter.TestToIssueMapping}. Jobs passed to these methods are never
+ * matrix projects, the links of a matrix project are stored for each of its configurations.
+ * For each link, the storage also keeps the build number and the time when the test was last seen in a test report.
+ * Implementations must be thread safe.
+ */
+public abstract class MappingStorage implements ExtensionPoint {
+
+    /**
+     * What an update of the links of a job replaced, see {@link #updateLinks}
+     */
+    public static final class LinkUpdate {
+        private final Map<String, String> replaced;
+        private final Set<String> unlinked;
+
+        public LinkUpdate(Map<String, String> replaced, Set<String> unlinked) {
+            this.replaced = replaced;
+            this.unlinked = unlinked;
+        }
+
+        /**
+         * Getter for the previous links of the added tests
+         * @return test id to the issue key the test was linked to before the update, null if it was not linked
+         */
+        public Map<String, String> getReplaced() { return replaced; }
+
+        /**
+         * Getter for the removed links
+         * @return the ids of the tests that were unlinked
+         */
+        public Set<String> getUnlinked() { return unlinked; }
+    }
+
+    /**
+     * Getter for the id used to select this storage
+     * @return
+     */
+    public abstract String getId();
+
+    /**
+     * Method for registering a job, called before any other operation on that job
+     * @param job
+     */
+    public abstract void register(Job job);
+
+    /**
+     * Method for dropping the links of a deleted job and of the jobs nested under it
+     * @param fullName
+     */
+    public abstract void unregister(String fullName);
+
+    /**
+     * Method for moving the links of a renamed or moved job, and of the jobs nested under it, to the new name
+     * @param oldFullName
+     * @param newFullName
+     */
+    public abstract void rename(String oldFullName, String newFullName);
+
+    /**
+     * Getter for the issue key linked to a test
+     * @param job
+     * @param testId
+     * @return the issue key or null if the test has no linked issue
+     */
+    public abstract String getIssueKey(Job job, String testId);
+
+    /**
+     * Getter for the tests linked to an issue
+     * @param job
+     * @param issueKey
+     * @return the test ids
+     */
+    public abstract List<String> getTestIds(Job job, String issueKey);
+
+    /**
+     * Getter for all the links of a job
+     * @param job
+     * @return a copy of the links, from test id to issue key
+     */
+    public abstract Map<String, String> getLinks(Job job);
+
+    /**
+     * Getter for a page of the links of a job, ordered by test id. Storages that can read a page without loading
+     * all the links should override this.
+     * @param job
+     * @param offset the number of links to skip
+     * @param limit the maximum number of links to return
+     * @return the links, from test id to issue key
+     */
+    public SortedMap<String, String> getLinks(Job job, int offset, int limit) {
+        SortedMap<String, String> page = new TreeMap<>();
+        int index = 0;
+        for (Map.Entry<String, String> link : new TreeMap<>(getLinks(job)).entrySet()) {
+            if (index++ < offset) {
+                continue;
+            }
+            if (page.size() == limit) {
+                break;
+            }
+            page.put(link.getKey(), link.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * Getter for the links of a job with a test id greater than the given one, ordered by test id. Reading a map page
+     * by page this way costs the same for every page, unlike {@link #getLinks(Job, int, int)}. Storages that can
+     * read a page without loading all the links should override this.
+     * @param job
+     * @param after the test id of the last link of the previous page, null for the first page
+     * @param limit the maximum number of links to return
+     * @return the links, from test id to issue key
+     */
+    public SortedMap<String, String> getLinksAfter(Job job, String after, int limit) {
+        SortedMap<String, String> page = new TreeMap<>();
+        SortedMap<String, String> links = new TreeMap<>(getLinks(job));
+        for (Map.Entry<String, String> link : links.entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            if (after == null || link.getKey().compareTo(after) > 0) {
+                page.put(link.getKey(), link.getValue());
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Links an issue to a test
+     * @param job
+     * @param testId
+     * @param issueKey
+     * @param buildNumber the build in which the test was last seen
+     * @param time the time when the test was last seen
+     * @return the issue key the test was linked to before, read in the same write, null if it was not linked
+     */
+    public abstract String addLink(Job job, String testId, String issueKey, int buildNumber, long time);
+
+    /**
+     * Unlinks an issue from a test, if the test is still linked to that issue
+     * @param job
+     * @param testId
+     * @param issueKey
+     * @return true if the link was removed
+     */
+    public abstract boolean removeLink(Job job, String testId, String issueKey);
+
+    /**
+     * Links and unlinks issues in one write. Storages should override this, the default implementation writes
+     * each link separately.
+     * @param job
+     * @param added test id to the issue key to link, replacing the current link of the test
+     * @param removed test id to the issue key to unlink, if the test is still linked to that issue
+     * @param buildNumber the build in which the added tests were last seen
+     * @param time the time when the added tests were last seen
+     * @return the previous links of the added tests and the ids of the tests that were unlinked
+     */
+    public LinkUpdate updateLinks(Job job, Map<String, String> added, Map<String, String> removed,
+                                  int buildNumber, long time) {
+        Map<String, String> replaced = new HashMap<>();
+        for (Map.Entry<String, String> link : added.entrySet()) {
+            replaced.put(link.getKey(), addLink(job, link.getKey(), link.getValue(), buildNumber, time));
+        }
+        Set<String> unlinked = new HashSet<>();
+        for (Map.Entry<String, String> link : removed.entrySet()) {
+            if (removeLink(job, link.getKey(), link.getValue())) {
+                unlinked.add(link.getKey());
+            }
+        }
+        return new LinkUpdate(replaced, unlinked);
+    }
+
+    /**
+     * Records that the given tests were part of a test report. Only linked tests are tracked.
+     * @param job
+     * @param testIds
+     * @param buildNumber
+     * @param time
+     */
+    public abstract void markSeen(Job job, Collection<String> testIds, int buildNumber, long time);
+
+    /**
+     * Removes the links of the tests that were not seen since the given build number or time.
+     * @param job
+     * @param minBuild links last seen in an older build are evicted, ignored if 0 or less
+     * @param minTime links last seen before this time are evicted, ignored if 0 or less
+     * @return test id to issue key, for the evicted links
+     */
+    public abstract Map<String, String> evictStaleLinks(Job job, int minBuild, long minTime);
+
+    /**
+     * Method for getting the number of the last build of a job
+     * @param job
+     * @return the build number, or 0 if the job has no builds
+     */
+    protected static int getLastBuildNumber(Job job) {
+        return job.getLastBuild() != null ? job.getLastBuild().getNumber() : 0;
+    }
+
+    /**
+     * Finds the storage with the given id
+     * @param id
+     * @return the storage, or null if there is none with this id
+     */
+    public static MappingStorage forId(String id) {
+        for (MappingStorage storage : all()) {
+            if (storage.getId().equals(id)) {
+                return storage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Getter for all the registered storages
+     * @return
+     */
+    public static ExtensionList<MappingStorage> all() {
+        return Jenkins.getInstance().getExtensionList(MappingStorage.class);
+    }
+}
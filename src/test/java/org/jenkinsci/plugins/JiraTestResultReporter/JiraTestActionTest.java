@@ -0,0 +1,220 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.UnprotectedRootAction;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.TestDataPublisher;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+import hudson.util.DescribableList;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the issue statuses loaded by badge.jelly after the page of a test is rendered
+ */
+public class JiraTestActionTest {
+    private static final String REPORT = "<testsuite name=\"pkg.Cls\" tests=\"1\" failures=\"1\">"
+            + "<testcase classname=\"pkg.Cls\" name=\"test\"><failure message=\"boom\">boom</failure></testcase>"
+            + "</testsuite>";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void configureJira() throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("jiraUrl", j.getURL() + "fakejira");
+        json.put("username", "user");
+        json.put("password", "password");
+        json.put("summary", "${TEST_FULL_NAME}");
+        json.put("description", "${TEST_ERROR_DETAILS}");
+        JiraUtils.getJiraDescriptor().configure(null, json);
+    }
+
+    @Test
+    public void statusIsLoadedAfterThePageIsRendered() throws Exception {
+        FreeStyleBuild build = buildWithFailingTest();
+        String testId = build.getAction(TestResultAction.class).getFailedTests().get(0).getId();
+        TestToIssueMapping.getInstance().addTestToIssueMapping(build.getParent(), testId, "TST-1");
+
+        HtmlPage page = j.createWebClient().getPage(build, "testReport/pkg/Cls/test/");
+        HtmlElement status = null;
+        for (int i = 0; i != 100; i++) {
+            List<HtmlElement> spans = page.getDocumentElement()
+                    .getElementsByAttribute("span", "class", "jira-issue-status");
+            assertEquals(1, spans.size());
+            status = spans.get(0);
+            if (!"...".equals(status.asText().trim())) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals("TST-1", status.getAttribute("data-issue-key"));
+        assertEquals("In Progress", status.asText().trim());
+    }
+
+    @Test
+    public void onlyLinkedIssuesAreLoaded() throws Exception {
+        FreeStyleBuild build = buildWithFailingTest();
+        String testId = build.getAction(TestResultAction.class).getFailedTests().get(0).getId();
+        TestToIssueMapping.getInstance().addTestToIssueMapping(build.getParent(), testId, "TST-1");
+
+        JSONArray links = new JSONArray();
+        links.add(link(build.getParent().getFullName(), "TST-2"));
+        links.add(link("missing", "TST-1"));
+        JiraTestAction.JiraTestActionDescriptor descriptor = j.jenkins.getDescriptorByType(
+                JiraTestAction.JiraTestActionDescriptor.class);
+        assertTrue(descriptor.getIssueStatuses(links).isEmpty());
+
+        links.add(link(build.getParent().getFullName(), "TST-1"));
+        assertTrue(descriptor.getIssueStatuses(links).has("TST-1"));
+
+        for (int i = 0; i != JiraUtils.MAX_ISSUES_PER_SEARCH; i++) {
+            links.add(link(build.getParent().getFullName(), "TST-" + (i + 3)));
+        }
+        try {
+            descriptor.getIssueStatuses(links);
+            fail("More issues than allowed in a search were requested");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private FreeStyleBuild buildWithFailingTest() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("report.xml").write(REPORT, "UTF-8");
+                return true;
+            }
+        });
+        DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
+                new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(Saveable.NOOP,
+                        Collections.<TestDataPublisher>singletonList(new EnvVarsDataPublisher()));
+        project.getPublishersList().add(new JUnitResultArchiver("report.xml", false, publishers));
+        return j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+    }
+
+    private static JSONObject link(String job, String issueKey) {
+        JSONObject link = new JSONObject();
+        link.put("job", job);
+        link.put("issueKey", issueKey);
+        return link;
+    }
+
+    /**
+     * Contributes the test data without raising or resolving issues, unlike JiraTestDataPublisher which needs
+     * a job configuration
+     */
+    public static class EnvVarsDataPublisher extends TestDataPublisher {
+        @Override
+        public TestResultAction.Data contributeTestData(Run<?, ?> run, FilePath workspace, Launcher launcher,
+                                                        TaskListener listener, TestResult testResult)
+                throws IOException, InterruptedException {
+            return new JiraTestData(new EnvVars());
+        }
+
+        @TestExtension
+        public static class DescriptorImpl extends Descriptor<TestDataPublisher> {
+            @Override
+            public String getDisplayName() {
+                return "Jira test data";
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of the Jira REST client, every issue is in progress
+     */
+    @TestExtension
+    public static class FakeJira implements UnprotectedRootAction {
+        private static final String ISSUE = "{\"self\": \"%1$s/rest/api/2/issue/10001\", \"key\": \"TST-1\", "
+                + "\"id\": \"10001\", \"fields\": {"
+                + "\"issuetype\": {\"self\": \"%1$s/rest/api/2/issuetype/1\", \"id\": \"1\", \"name\": \"Bug\", "
+                + "\"description\": \"A bug\", \"subtask\": false, \"iconUrl\": \"%1$s/bug.png\"}, "
+                + "\"status\": {\"self\": \"%1$s/rest/api/2/status/3\", \"id\": \"3\", \"name\": \"In Progress\", "
+                + "\"description\": \"Being worked on\", \"iconUrl\": \"%1$s/inprogress.png\"}, "
+                + "\"project\": {\"self\": \"%1$s/rest/api/2/project/10000\", \"key\": \"TST\", \"id\": \"10000\", "
+                + "\"name\": \"Test\"}, "
+                + "\"summary\": \"pkg.Cls.test failed\", "
+                + "\"created\": \"2016-01-01T00:00:00.000+0000\", \"updated\": \"2016-01-01T00:00:00.000+0000\", "
+                + "\"comment\": {\"startAt\": 0, \"maxResults\": 0, \"total\": 0, \"comments\": []}, "
+                + "\"worklog\": {\"startAt\": 0, \"maxResults\": 0, \"total\": 0, \"worklogs\": []}}}";
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return "fakejira";
+        }
+
+        public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            String self = req.getRootPath() + "/fakejira";
+            rsp.setContentType("application/json;charset=UTF-8");
+            if (req.getRestOfPath().endsWith("/search")) {
+                rsp.getWriter().write("{\"startAt\": 0, \"maxResults\": 100, \"total\": 1, \"issues\": ["
+                        + String.format(ISSUE, self) + "]}");
+            } else if (req.getRestOfPath().endsWith("/status")) {
+                rsp.getWriter().write("[]");
+            } else if (req.getRestOfPath().endsWith("/issue/TST-1")) {
+                rsp.getWriter().write(String.format(ISSUE, self));
+            } else {
+                rsp.sendError(404);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter;
+
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.atlassian.jira.rest.client.api.domain.SearchResult;
+import hudson.model.UnprotectedRootAction;
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the search of duplicate issues
+ */
+public class JiraUtilsTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void configureJira() throws Exception {
+        FakeJira.queries.clear();
+        JSONObject json = new JSONObject();
+        json.put("jiraUrl", j.getURL() + "fakejira");
+        json.put("username", "user");
+        json.put("password", "password");
+        json.put("summary", "${TEST_FULL_NAME}");
+        json.put("description", "${TEST_ERROR_DETAILS}");
+        JiraUtils.getJiraDescriptor().configure(null, json);
+    }
+
+    @Test
+    public void issueWithFingerprintLabelIsFound() {
+        SearchResult result = JiraUtils.findIssues("TST", "jtrr-labeled", "pkg.Cls.test failed");
+
+        List<String> keys = new ArrayList<String>();
+        for (Issue issue : result.getIssues()) {
+            keys.add(issue.getKey());
+        }
+        assertEquals(Collections.singletonList("TST-1"), keys);
+        assertEquals(1, FakeJira.queries.size());
+    }
+
+    @Test
+    public void issueWithoutFingerprintLabelIsFoundBySummary() {
+        SearchResult result = JiraUtils.findIssues("TST", "jtrr-unlabeled", "pkg.Cls.test failed");
+
+        List<String> keys = new ArrayList<String>();
+        for (Issue issue : result.getIssues()) {
+            keys.add(issue.getKey());
+        }
+        assertEquals(Collections.singletonList("TST-1"), keys);
+        assertEquals(2, FakeJira.queries.size());
+        assertTrue(FakeJira.queries.get(0).contains("labels = \"jtrr-unlabeled\""));
+        assertTrue(FakeJira.queries.get(1).contains("text ~ \"pkg.Cls.test failed\""));
+    }
+
+    @Test
+    public void labelMissWithoutSummaryRunsOneSearch() {
+        SearchResult result = JiraUtils.findIssues("TST", "jtrr-unlabeled", null);
+
+        assertEquals(0, result.getTotal());
+        assertEquals(1, FakeJira.queries.size());
+    }
+
+    @Test
+    public void bracketedNamesAreEscapedInTheSummarySearch() {
+        JiraUtils.findIssues("TST", "jtrr-unlabeled", "pkg.Cls.testFoo[0] failed");
+
+        assertEquals(2, FakeJira.queries.size());
+        assertTrue(FakeJira.queries.get(1).contains("text ~ \"pkg.Cls.testFoo\\\\[0\\\\] failed\""));
+    }
+
+    @Test
+    public void luceneReservedCharactersAreEscaped() {
+        assertEquals("a\\\\(b\\\\)\\\\:\\\\!\\\\~\\\\*\\\\?\\\\+\\\\-\\\\/\\\\^\\\\{\\\\}",
+                JiraUtils.escapeJQLText("a(b):!~*?+-/^{}"));
+        assertEquals("say \\\\\\\"hi\\\\\\\" C\\\\:\\\\\\\\dir", JiraUtils.escapeJQLText("say \"hi\" C:\\dir"));
+    }
+
+    @Test
+    public void quotesAreEscaped() {
+        assertEquals("say \\\"hi\\\" C:\\\\dir", JiraUtils.escapeJQL("say \"hi\" C:\\dir"));
+    }
+
+    /**
+     * Answers the searches of the Jira REST client, only the issue TST-1 exists and it has the label jtrr-labeled
+     */
+    @TestExtension
+    public static class FakeJira implements UnprotectedRootAction {
+        static final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+        private static final String ISSUE = "{\"self\": \"%1$s/rest/api/2/issue/10001\", \"key\": \"TST-1\", "
+                + "\"id\": \"10001\", \"fields\": {"
+                + "\"issuetype\": {\"self\": \"%1$s/rest/api/2/issuetype/1\", \"id\": \"1\", \"name\": \"Bug\", "
+                + "\"description\": \"A bug\", \"subtask\": false, \"iconUrl\": \"%1$s/bug.png\"}, "
+                + "\"status\": {\"self\": \"%1$s/rest/api/2/status/1\", \"id\": \"1\", \"name\": \"Open\", "
+                + "\"description\": \"Open\", \"iconUrl\": \"%1$s/open.png\"}, "
+                + "\"project\": {\"self\": \"%1$s/rest/api/2/project/10000\", \"key\": \"TST\", \"id\": \"10000\", "
+                + "\"name\": \"Test\"}, "
+                + "\"summary\": \"pkg.Cls.test failed\", "
+                + "\"created\": \"2016-01-01T00:00:00.000+0000\", \"updated\": \"2016-01-01T00:00:00.000+0000\", "
+                + "\"comment\": {\"startAt\": 0, \"maxResults\": 0, \"total\": 0, \"comments\": []}, "
+                + "\"worklog\": {\"startAt\": 0, \"maxResults\": 0, \"total\": 0, \"worklogs\": []}}}";
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return "fakejira";
+        }
+
+        public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setContentType("application/json;charset=UTF-8");
+            if (req.getRestOfPath().endsWith("/search")) {
+                String jql = req.getParameter("jql");
+                queries.add(jql);
+                boolean found = !jql.contains("labels") || jql.contains("jtrr-labeled");
+                rsp.getWriter().write("{\"startAt\": 0, \"maxResults\": 50, \"total\": " + (found ? 1 : 0)
+                        + ", \"issues\": [" + (found ? String.format(ISSUE, req.getRootPath() + "/fakejira") : "")
+                        + "]}");
+            } else if (req.getRestOfPath().endsWith("/status")) {
+                rsp.getWriter().write("[]");
+            } else {
+                rsp.sendError(404);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter.api;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.JiraTestResultReporter.TestToIssueMapping;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for reading the links of a job with the json endpoint of the test to issue mapping API
+ */
+public class TestToIssueMappingApiTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void linksAreReadInPages() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("paged");
+        link(project, 5);
+
+        HttpURLConnection connection = get("job=paged&limit=2");
+        assertEquals("{\"t1\":\"TST-1\",\"t2\":\"TST-2\"}", read(connection).toString());
+        assertEquals("2", connection.getHeaderField("X-Next-Offset"));
+        assertEquals("t2", connection.getHeaderField("X-Next-After"));
+
+        connection = get("job=paged&limit=2&offset=2");
+        assertEquals("{\"t3\":\"TST-3\",\"t4\":\"TST-4\"}", read(connection).toString());
+        assertEquals("4", connection.getHeaderField("X-Next-Offset"));
+
+        connection = get("job=paged&limit=2&after=t4");
+        assertEquals("{\"t5\":\"TST-5\"}", read(connection).toString());
+        assertNull(connection.getHeaderField("X-Next-Offset"));
+        assertNull(connection.getHeaderField("X-Next-After"));
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, get("job=paged&offset=2&after=t2").getResponseCode());
+    }
+
+    @Test
+    public void wholeMapIsGzipped() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("gzipped");
+        link(project, 3);
+
+        HttpURLConnection connection = get("job=gzipped", "Accept-Encoding", "gzip");
+        assertEquals("gzip", connection.getContentEncoding());
+        assertEquals("{\"t1\":\"TST-1\",\"t2\":\"TST-2\",\"t3\":\"TST-3\"}", read(connection).toString());
+    }
+
+    @Test
+    public void unchangedMapIsNotModified() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("cached");
+        link(project, 1);
+
+        String eTag = get("job=cached").getHeaderField("ETag");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get("job=cached", "If-None-Match", eTag).getResponseCode());
+
+        TestToIssueMapping.getInstance().addTestToIssueMapping(project, "t2", "TST-2");
+        HttpURLConnection connection = get("job=cached", "If-None-Match", eTag);
+        assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+        assertNotEquals(eTag, connection.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void removedConfigurationChangesTheMatrixETag() throws Exception {
+        MatrixProject matrix = j.jenkins.createProject(MatrixProject.class, "matrix");
+        matrix.setAxes(new AxisList(new TextAxis("axis", "a", "b")));
+        TestToIssueMapping.getInstance().addTestToIssueMapping(matrix.getItem("axis=a"), "t1", "TST-1");
+        String eTag = get("job=matrix").getHeaderField("ETag");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get("job=matrix", "If-None-Match", eTag).getResponseCode());
+
+        //the highest version goes back to the one of axis=a when axis=b is removed
+        TestToIssueMapping.getInstance().addTestToIssueMapping(matrix.getItem("axis=b"), "t1", "TST-2");
+        matrix.getItem("axis=b").delete();
+        HttpURLConnection connection = get("job=matrix", "If-None-Match", eTag);
+        assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+        assertFalse(read(connection).has("axis=b"));
+    }
+
+    private static void link(Job job, int count) {
+        for (int i = 1; i <= count; i++) {
+            TestToIssueMapping.getInstance().addTestToIssueMapping(job, "t" + i, "TST-" + i);
+        }
+    }
+
+    private HttpURLConnection get(String query, String... headers) throws IOException {
+        URL url = new URL(j.getURL(), "plugin/JiraTestResultReporter/testToIssueMapping/json?" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        return connection;
+    }
+
+    private static JSONObject read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = "gzip".equals(connection.getContentEncoding())
+                ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream()) {
+            return JSONObject.fromObject(IOUtils.toString(in, "UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ Copyright 2015 Andrei Tuicu
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.jenkinsci.plugins.JiraTestResultReporter.storage;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the JSON and the H2 storages through the same operations. Each storage gets its own jobs, since the H2
+ * storage imports the JSON maps of the jobs it registers.
+ */
+public class MappingStorageTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private List<MappingStorage> storages() {
+        return Arrays.asList(MappingStorage.forId(JsonMappingStorage.ID), MappingStorage.forId(H2MappingStorage.ID));
+    }
+
+    private Job createJob(MappingStorage storage, String name) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject(storage.getId() + "-" + name);
+        storage.register(project);
+        return project;
+    }
+
+    @Test
+    public void linksAreAddedAndRemoved() throws Exception {
+        for (MappingStorage storage : storages()) {
+            Job job = createJob(storage, "link");
+
+            assertNull(storage.getId(), storage.addLink(job, "t1", "TST-1", 1, 1000));
+            assertEquals(storage.getId(), "TST-1", storage.addLink(job, "t1", "TST-2", 1, 1000));
+            assertEquals(storage.getId(), "TST-2", storage.getIssueKey(job, "t1"));
+            assertEquals(storage.getId(), Collections.singletonList("t1"), storage.getTestIds(job, "TST-2"));
+
+            assertFalse(storage.getId(), storage.removeLink(job, "t1", "TST-1"));
+            assertTrue(storage.getId(), storage.removeLink(job, "t1", "TST-2"));
+            assertNull(storage.getId(), storage.getIssueKey(job, "t1"));
+
+            Map<String, String> added = new HashMap<>();
+            added.put("t2", "TST-2");
+            added.put("t3", "TST-3");
+            MappingStorage.LinkUpdate update = storage.updateLinks(job, added,
+                    Collections.singletonMap("t2", "TST-9"), 1, 1000);
+            assertEquals(storage.getId(), 2, update.getReplaced().size());
+            assertNull(storage.getId(), update.getReplaced().get("t2"));
+            assertTrue(storage.getId(), update.getUnlinked().isEmpty());
+            assertEquals(storage.getId(), added, storage.getLinks(job));
+
+            update = storage.updateLinks(job, Collections.<String, String>emptyMap(),
+                    Collections.singletonMap("t2", "TST-2"), 1, 1000);
+            assertEquals(storage.getId(), Collections.singleton("t2"), update.getUnlinked());
+            assertEquals(storage.getId(), Collections.singletonMap("t3", "TST-3"), storage.getLinks(job));
+        }
+    }
+
+    @Test
+    public void linksAreReadInPages() throws Exception {
+        for (MappingStorage storage : storages()) {
+            Job job = createJob(storage, "pages");
+            for (int i = 5; i >= 1; i--) {
+                storage.addLink(job, "t" + i, "TST-" + i, 1, 1000);
+            }
+
+            assertEquals(storage.getId(), Arrays.asList("t2", "t3"),
+                    Arrays.asList(storage.getLinks(job, 1, 2).keySet().toArray()));
+            assertEquals(storage.getId(), Arrays.asList("t1", "t2", "t3", "t4", "t5"),
+                    Arrays.asList(storage.getLinks(job, 0, 10).keySet().toArray()));
+            assertTrue(storage.getId(), storage.getLinks(job, 5, 10).isEmpty());
+            assertEquals(storage.getId(), Arrays.asList("t4", "t5"),
+                    Arrays.asList(storage.getLinksAfter(job, "t3", 10).keySet().toArray()));
+            assertEquals(storage.getId(), Arrays.asList("t1"),
+                    Arrays.asList(storage.getLinksAfter(job, null, 1).keySet().toArray()));
+        }
+    }
+
+    @Test
+    public void linksFollowRenamedJobs() throws Exception {
+        for (MappingStorage storage : storages()) {
+            Job job = createJob(storage, "old");
+            storage.addLink(job, "t1", "TST-1", 1, 1000);
+
+            job.renameTo(storage.getId() + "-new");
+            storage.rename(storage.getId() + "-old", storage.getId() + "-new");
+
+            assertEquals(storage.getId(), "TST-1", storage.getIssueKey(job, "t1"));
+            assertEquals(storage.getId(), Collections.singletonList("t1"), storage.getTestIds(job, "TST-1"));
+        }
+    }
+
+    @Test
+    public void staleLinksAreEvicted() throws Exception {
+        for (MappingStorage storage : storages()) {
+            Job job = createJob(storage, "stale");
+            storage.addLink(job, "t1", "TST-1", 1, 1000);
+            storage.addLink(job, "t2", "TST-2", 5, 5000);
+
+            assertEquals(storage.getId(), Collections.singletonMap("t1", "TST-1"),
+                    storage.evictStaleLinks(job, 3, 0));
+            assertNull(storage.getId(), storage.getIssueKey(job, "t1"));
+
+            storage.markSeen(job, Arrays.asList("t2", "t3"), 10, 10000);
+            assertTrue(storage.getId(), storage.evictStaleLinks(job, 8, 8000).isEmpty());
+            assertEquals(storage.getId(), Collections.singletonMap("t2", "TST-2"),
+                    storage.evictStaleLinks(job, 0, 20000));
+            assertTrue(storage.getId(), storage.getLinks(job).isEmpty());
+        }
+    }
+
+    @Test
+    public void lastSeenIsSavedNextToTheJsonMap() throws Exception {
+        Job job = createJob(MappingStorage.forId(JsonMappingStorage.ID), "sidecar");
+        MappingStorage.forId(JsonMappingStorage.ID).addLink(job, "t1", "TST-1", 7, 7000);
+        assertTrue(new File(job.getRootDir(), "JiraIssueKeyToTestMap.lastSeen.json").isFile());
+
+        //links without the last seen information would be considered seen now, and not evicted
+        JsonMappingStorage reloaded = new JsonMappingStorage();
+        reloaded.register(job);
+        assertEquals(Collections.singletonMap("t1", "TST-1"), reloaded.evictStaleLinks(job, 0, 8000));
+    }
+
+    @Test
+    public void jsonMapIsImportedOnce() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("imported");
+        MappingStorage json = MappingStorage.forId(JsonMappingStorage.ID);
+        json.register(project);
+        json.addLink(project, "t1", "TST-1", 3, 3000);
+        json.addLink(project, "t2", "TST-2", 9, 9000);
+
+        MappingStorage h2 = MappingStorage.forId(H2MappingStorage.ID);
+        h2.register(project);
+        assertEquals(json.getLinks(project), h2.getLinks(project));
+        //the last seen information is imported with the links
+        assertEquals(Collections.singletonMap("t1", "TST-1"), h2.evictStaleLinks(project, 5, 0));
+
+        h2.register(project);
+        assertEquals(Collections.singletonMap("t2", "TST-2"), h2.getLinks(project));
+    }
+}